@@ -0,0 +1,190 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdRequest;
+import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
+import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
+import com.fyber.inneractive.sdk.external.OnFyberMarketplaceInitializedListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Microbenchmarks of the adapter's per request overhead, against {@link StubFyberSdk}
+ * <br>Run with ./gradlew :benchmark:lockClocks :benchmark:connectedAndroidTest on a rooted device, and compare the results between adapter releases
+ */
+@RunWith(AndroidJUnit4.class)
+public class FyberAdapterBenchmark {
+    private final static String APP_ID = "benchmark-app";
+    private final static String SPOT_ID = "benchmark-spot";
+    private final static int CONTENDING_THREADS = 3;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private Context mContext;
+    private Map<String, String> mExtras;
+    /** Keeps the benchmarked results reachable, so that the measured calls are not optimized away */
+    private volatile Object mSink;
+
+    @Before
+    public void setUp() {
+        StubFyberSdk.install();
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        mExtras = new HashMap<>();
+        mExtras.put(FyberMopubMediationDefs.KEY_KEYWORDS, "sports,news");
+        mExtras.put(FyberMopubMediationDefs.KEY_AGE, "34");
+        mExtras.put(FyberMopubMediationDefs.KEY_ZIPCODE, "10001");
+        mExtras.put(FyberMopubMediationDefs.KEY_GENDER, FyberMopubMediationDefs.GENDER_FEMALE);
+    }
+
+    @After
+    public void tearDown() {
+        StubFyberSdk.uninstall();
+    }
+
+    @Test
+    public void updateRequestFromExtras() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            InneractiveAdRequest request = new InneractiveAdRequest(SPOT_ID);
+            FyberAdapterConfiguration.updateRequestFromExtras(request, mExtras);
+            mSink = request;
+        }
+    }
+
+    @Test
+    public void updateGdprConsentStatusFromMopub() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            FyberAdapterConfiguration.updateGdprConsentStatusFromMopub();
+        }
+    }
+
+    /**
+     * The error mapping which each failed load goes through, for every error the SDK reports
+     */
+    @Test
+    public void errorCodeMapping() {
+        InneractiveErrorCode[] errorCodes = InneractiveErrorCode.values();
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mSink = FyberErrorStats.toMoPubErrorCode(errorCodes[i]);
+            i = (i + 1) % errorCodes.length;
+        }
+    }
+
+    /**
+     * The per request setup which each load pays before the network: a pooled spot, a populated request and a new request listener
+     */
+    @Test
+    public void spotRequestSetup() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            InneractiveAdSpot spot = FyberSpotPool.get().acquire(FyberAdFormat.INTERSTITIAL);
+            InneractiveAdRequest request = new InneractiveAdRequest(SPOT_ID);
+            FyberAdapterConfiguration.updateRequestFromExtras(request, mExtras);
+            spot.setRequestListener(new InneractiveAdSpot.RequestListener() {
+                @Override
+                public void onInneractiveSuccessfulAdRequest(InneractiveAdSpot adSpot) {
+                }
+
+                @Override
+                public void onInneractiveFailedAdRequest(InneractiveAdSpot adSpot, InneractiveErrorCode errorCode) {
+                }
+            });
+            FyberSpotPool.get().recycle(FyberAdFormat.INTERSTITIAL, spot);
+            mSink = request;
+        }
+    }
+
+    /**
+     * Every load of an adapter with an application id calls initializeFyberMarketplace. Measures the call once the SDK is up,
+     * while other threads call it at the same time
+     */
+    @Test
+    public void initializeFyberMarketplaceUnderContention() throws InterruptedException {
+        final CountDownLatch initialized = new CountDownLatch(1);
+        FyberAdapterConfiguration.initializeFyberMarketplace(mContext, APP_ID, false, new CountDownListener(initialized));
+        assertTrue("initialization did not complete", initialized.await(5, TimeUnit.SECONDS));
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener listener = new CountDownListener(null);
+        Thread[] threads = new Thread[CONTENDING_THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        FyberAdapterConfiguration.initializeFyberMarketplace(mContext, APP_ID, false, listener);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        try {
+            BenchmarkState state = mBenchmarkRule.getState();
+            while (state.keepRunning()) {
+                FyberAdapterConfiguration.initializeFyberMarketplace(mContext, APP_ID, false, listener);
+            }
+        } finally {
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Counts down a latch, if one was given, once the initialization is resolved
+     */
+    private static final class CountDownListener implements FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener {
+        private final CountDownLatch mLatch;
+
+        CountDownListener(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        public void onFyberAdapterConfigurationResolved(OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
+            if (mLatch != null) {
+                mLatch.countDown();
+            }
+        }
+    }
+}
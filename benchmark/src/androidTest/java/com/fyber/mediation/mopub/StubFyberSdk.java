@@ -0,0 +1,128 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
+import com.fyber.inneractive.sdk.external.OnFyberMarketplaceInitializedListener;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * A stand-in for Fyber's SDK which never touches the network, so that the benchmarks only measure the adapter's own work
+ * <br>Spots accept requests and never answer them. The SDK initialization completes synchronously and successfully
+ */
+final class StubFyberSdk {
+    private StubFyberSdk() {
+    }
+
+    /**
+     * Routes the adapter's spot creation and SDK initialization to the stub. The adapter's initialization state is reset
+     */
+    static void install() {
+        FyberSpotPool.get().setSpotFactory(SPOT_FACTORY);
+        FyberAdapterConfiguration.setSdkInitializer(new StubInitializer());
+    }
+
+    /**
+     * Restores Fyber's SDK
+     */
+    static void uninstall() {
+        FyberSpotPool.get().setSpotFactory(null);
+        FyberAdapterConfiguration.setSdkInitializer(null);
+    }
+
+    private final static FyberSpotPool.SpotFactory SPOT_FACTORY = new FyberSpotPool.SpotFactory() {
+        @NonNull
+        @Override
+        public InneractiveAdSpot createSpot() {
+            return (InneractiveAdSpot) Proxy.newProxyInstance(InneractiveAdSpot.class.getClassLoader(),
+                                                              new Class<?>[]{InneractiveAdSpot.class}, new StubSpot());
+        }
+    };
+
+    private static final class StubInitializer implements FyberAdapterConfiguration.SdkInitializer {
+        private volatile String mAppId;
+
+        @Override
+        public void initialize(Context context, String appId, OnFyberMarketplaceInitializedListener listener) {
+            mAppId = appId;
+            listener.onFyberMarketplaceInitialized(OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY);
+        }
+
+        @Override
+        public boolean wasInitialized() {
+            return mAppId != null;
+        }
+
+        @Override
+        public String getAppId() {
+            return mAppId;
+        }
+    }
+
+    /**
+     * A spot which keeps its unit controller, and returns default values from all other methods
+     */
+    private static final class StubSpot implements InvocationHandler {
+        private Object mUnitController;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "addUnitController":
+                    mUnitController = args[0];
+                    return null;
+                case "getSelectedUnitController":
+                    return mUnitController;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "StubSpot@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return defaultValueOf(method.getReturnType());
+            }
+        }
+    }
+
+    private static Object defaultValueOf(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return false;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
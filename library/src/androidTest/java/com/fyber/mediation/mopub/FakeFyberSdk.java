@@ -0,0 +1,350 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
+import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
+import com.fyber.inneractive.sdk.external.InneractiveUnitController;
+import com.fyber.inneractive.sdk.external.OnFyberMarketplaceInitializedListener;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An offline stand-in for Fyber's SDK, used by the load simulation of the adapters
+ * <br>Spots are created through {@link FyberSpotPool}'s spot factory, and answer each request on the main thread after a sampled latency,
+ * either with a fill or with one of the configured errors. Stalled requests are never answered. The SDK initialization completes after its own latency, with the configured status,
+ * or when the test calls {@link #completeInit()} if it was held.
+ * <br>Call {@link #install()} before the run, and {@link #uninstall()} after it
+ */
+final class FakeFyberSdk {
+    /**
+     * A latency distribution
+     */
+    interface Latency {
+        long nextMillis(@NonNull Random random);
+    }
+
+    /**
+     * @return a latency which is always the given duration
+     */
+    static Latency fixed(final long millis) {
+        return new Latency() {
+            @Override
+            public long nextMillis(@NonNull Random random) {
+                return millis;
+            }
+        };
+    }
+
+    /**
+     * @return a latency which is uniformly distributed between the given durations
+     */
+    static Latency uniform(final long minMillis, final long maxMillis) {
+        return new Latency() {
+            @Override
+            public long nextMillis(@NonNull Random random) {
+                return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+            }
+        };
+    }
+
+    /**
+     * @param medianMillis the median latency
+     * @param sigma the spread of the distribution. Higher values give a longer tail, 0.5 - 1 resemble real network requests
+     * @return a log-normally distributed latency
+     */
+    static Latency logNormal(final long medianMillis, final double sigma) {
+        return new Latency() {
+            @Override
+            public long nextMillis(@NonNull Random random) {
+                return (long) (medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom;
+
+    private Latency mRequestLatency = fixed(0);
+    private double mFillRate = 1;
+    private double mStallRate = 0;
+    private InneractiveErrorCode[] mErrorCodes = {InneractiveErrorCode.NO_FILL};
+    private Latency mInitLatency = fixed(0);
+    private OnFyberMarketplaceInitializedListener.FyberInitStatus mInitStatus =
+            OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY;
+
+    /** Initializations which wait for {@link #completeInit()}, while mHoldInit is set */
+    private final List<Runnable> mHeldInits = new ArrayList<>();
+    private boolean mHoldInit;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mInitCount = new AtomicInteger();
+    private volatile String mAppId;
+    private volatile boolean mInitialized;
+
+    /**
+     * @param seed seed of the sampled latencies and outcomes, so that runs can be repeated
+     */
+    FakeFyberSdk(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    FakeFyberSdk requestLatency(@NonNull Latency latency) {
+        mRequestLatency = latency;
+        return this;
+    }
+
+    /**
+     * @param fillRate the probability of a request to fill, between 0 and 1
+     */
+    FakeFyberSdk fillRate(double fillRate) {
+        mFillRate = fillRate;
+        return this;
+    }
+
+    /**
+     * @param stallRate the probability of a request to never be answered, between 0 and 1. Stalled requests only end by the adapter's deadline
+     */
+    FakeFyberSdk stallRate(double stallRate) {
+        mStallRate = stallRate;
+        return this;
+    }
+
+    /**
+     * @param errorCodes the errors of requests which do not fill, picked with an equal probability
+     */
+    FakeFyberSdk errorCodes(@NonNull InneractiveErrorCode... errorCodes) {
+        mErrorCodes = errorCodes;
+        return this;
+    }
+
+    FakeFyberSdk initLatency(@NonNull Latency latency) {
+        mInitLatency = latency;
+        return this;
+    }
+
+    FakeFyberSdk initStatus(@NonNull OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
+        mInitStatus = status;
+        return this;
+    }
+
+    /**
+     * Holds all SDK initializations until {@link #completeInit()} is called, so that tests control when they complete
+     */
+    synchronized FakeFyberSdk holdInit() {
+        mHoldInit = true;
+        return this;
+    }
+
+    /**
+     * Completes the held initializations, and stops holding new ones
+     */
+    void completeInit() {
+        List<Runnable> heldInits;
+        synchronized (this) {
+            mHoldInit = false;
+            heldInits = new ArrayList<>(mHeldInits);
+            mHeldInits.clear();
+        }
+        for (Runnable init : heldInits) {
+            mMainHandler.post(init);
+        }
+    }
+
+    /**
+     * Routes the adapter's spot creation and SDK initialization to this instance. The adapter's initialization state is reset
+     */
+    FakeFyberSdk install() {
+        FyberSpotPool.get().setSpotFactory(mSpotFactory);
+        FyberAdapterConfiguration.setSdkInitializer(mSdkInitializer);
+        return this;
+    }
+
+    /**
+     * Restores Fyber's SDK, destroys the cached fake spots, and resets the adapter wide state the run has built up
+     */
+    static void uninstall() {
+        FyberAdInventoryCache.get().clear();
+        FyberCircuitBreaker.reset();
+        FyberNoFillBackoff.reset();
+        FyberErrorStats.reset();
+        FyberSpotPool.get().setSpotFactory(null);
+        FyberAdapterConfiguration.setSdkInitializer(null);
+    }
+
+    /**
+     * @return the number of ad requests sent so far
+     */
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of SDK initializations started so far
+     */
+    int getInitCount() {
+        return mInitCount.get();
+    }
+
+    private final FyberSpotPool.SpotFactory mSpotFactory = new FyberSpotPool.SpotFactory() {
+        @NonNull
+        @Override
+        public InneractiveAdSpot createSpot() {
+            return (InneractiveAdSpot) Proxy.newProxyInstance(InneractiveAdSpot.class.getClassLoader(),
+                                                              new Class<?>[]{InneractiveAdSpot.class}, new FakeSpot());
+        }
+    };
+
+    private final FyberAdapterConfiguration.SdkInitializer mSdkInitializer = new FyberAdapterConfiguration.SdkInitializer() {
+        @Override
+        public void initialize(Context context, final String appId, final OnFyberMarketplaceInitializedListener listener) {
+            mInitCount.incrementAndGet();
+            final OnFyberMarketplaceInitializedListener.FyberInitStatus status = mInitStatus;
+            Runnable init = new Runnable() {
+                @Override
+                public void run() {
+                    if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY) {
+                        mAppId = appId;
+                        mInitialized = true;
+                    }
+                    listener.onFyberMarketplaceInitialized(status);
+                }
+            };
+
+            synchronized (FakeFyberSdk.this) {
+                if (mHoldInit) {
+                    mHeldInits.add(init);
+                    return;
+                }
+            }
+            mMainHandler.postDelayed(init, mInitLatency.nextMillis(mRandom));
+        }
+
+        @Override
+        public boolean wasInitialized() {
+            return mInitialized;
+        }
+
+        @Override
+        public String getAppId() {
+            return mAppId;
+        }
+    };
+
+    /**
+     * The state of a single fake spot. Only the methods used by the adapter have a behavior, all others return default values
+     * <br>Must be used from the main thread, as the adapter does
+     */
+    private final class FakeSpot implements InvocationHandler {
+        private InneractiveAdSpot.RequestListener mRequestListener;
+        private InneractiveUnitController mUnitController;
+        /** Identifies the latest request, so that the answer of a replaced request is dropped */
+        private int mRequestId;
+        private boolean mReady;
+        private boolean mDestroyed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "setRequestListener":
+                    mRequestListener = (InneractiveAdSpot.RequestListener) args[0];
+                    return null;
+                case "addUnitController":
+                    mUnitController = (InneractiveUnitController) args[0];
+                    return null;
+                case "getSelectedUnitController":
+                    return mUnitController;
+                case "requestAd":
+                    request((InneractiveAdSpot) proxy);
+                    return null;
+                case "isReady":
+                    return mReady;
+                case "destroy":
+                    mDestroyed = true;
+                    mReady = false;
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "FakeSpot@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return defaultValueOf(method.getReturnType());
+            }
+        }
+
+        private void request(final InneractiveAdSpot spot) {
+            mRequestCount.incrementAndGet();
+            mReady = false;
+            final int requestId = ++mRequestId;
+            if (mRandom.nextDouble() < mStallRate) {
+                return;
+            }
+            final boolean fill = mRandom.nextDouble() < mFillRate;
+            final InneractiveErrorCode errorCode = mErrorCodes[mRandom.nextInt(mErrorCodes.length)];
+
+            mMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDestroyed || requestId != mRequestId || mRequestListener == null) {
+                        return;
+                    }
+
+                    if (fill) {
+                        mReady = true;
+                        mRequestListener.onInneractiveSuccessfulAdRequest(spot);
+                    } else {
+                        mRequestListener.onInneractiveFailedAdRequest(spot, errorCode);
+                    }
+                }
+            }, mRequestLatency.nextMillis(mRandom));
+        }
+    }
+
+    private static Object defaultValueOf(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return false;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,410 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
+import com.fyber.inneractive.sdk.external.OnFyberMarketplaceInitializedListener;
+import com.mopub.mobileads.AdData;
+import com.mopub.mobileads.AdLifecycleListener;
+import com.mopub.mobileads.BaseAd;
+import com.mopub.mobileads.BaseAdDriver;
+import com.mopub.mobileads.MoPubErrorCode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs bursts of concurrent loads through the custom adapter classes, against {@link FakeFyberSdk}
+ * <br>Each load creates a new adapter and drives its real {@link BaseAd} load, the way Mopub does. Throughput and tail latency are
+ * logged under the "FyberLoadSimulation" tag
+ */
+@RunWith(AndroidJUnit4.class)
+public class FyberLoadSimulationTest {
+    private final static String LOG_TAG = "FyberLoadSimulation";
+    private final static String APP_ID = "simulated-app";
+
+    private final static int BURST_SIZE = 200;
+    private final static double FILL_RATE = 0.8;
+    /** Fraction of the requests which the fake SDK never answers, so that their loads reach the deadline */
+    private final static double STALL_RATE = 0.1;
+    /** Allowed deviation of the number of fills and timeouts from the configured rates, as a fraction of the burst */
+    private final static double FILL_TOLERANCE = 0.1;
+    /** Well above the tail of the simulated latency, so that only stalled requests reach it */
+    private final static int LOAD_TIMEOUT_MILLIS = 3000;
+    private final static long BURST_TIMEOUT_MILLIS = 15 * 1000L;
+
+    /** The errors returned by the fake SDK, and the Mopub error codes the adapters must report for them */
+    private final static InneractiveErrorCode[] SDK_ERRORS = {InneractiveErrorCode.NO_FILL, InneractiveErrorCode.CONNECTION_ERROR,
+                                                              InneractiveErrorCode.CONNECTION_TIMEOUT};
+    private final static Set<MoPubErrorCode> REPORTED_ERRORS = EnumSet.of(MoPubErrorCode.NO_FILL, MoPubErrorCode.NO_CONNECTION,
+                                                                          MoPubErrorCode.NETWORK_TIMEOUT);
+
+    private ActivityScenario<SimulationActivity> mScenario;
+
+    @Before
+    public void setUp() {
+        mScenario = ActivityScenario.launch(SimulationActivity.class);
+    }
+
+    @After
+    public void tearDown() {
+        FakeFyberSdk.uninstall();
+        mScenario.close();
+    }
+
+    @Test
+    public void interstitialBurst() throws InterruptedException {
+        runBurst(FyberAdFormat.INTERSTITIAL, 1);
+    }
+
+    @Test
+    public void rewardedBurst() throws InterruptedException {
+        runBurst(null, 2);
+    }
+
+    @Test
+    public void bannerBurst() throws InterruptedException {
+        runBurst(FyberAdFormat.BANNER, 3);
+    }
+
+    @Test
+    public void concurrentInitializationsShareASingleSdkInitialization() throws InterruptedException {
+        FakeFyberSdk sdk = new FakeFyberSdk(4).holdInit().install();
+
+        InitCalls calls = initializeConcurrently(8, 50);
+        assertEquals(1, sdk.getInitCount());
+
+        sdk.completeInit();
+        for (OnFyberMarketplaceInitializedListener.FyberInitStatus result : calls.awaitResults()) {
+            assertEquals(OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY, result);
+        }
+    }
+
+    @Test
+    public void failedInitializationIsRetriedByTheNextCaller() throws InterruptedException {
+        FakeFyberSdk sdk = new FakeFyberSdk(5).initStatus(OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED)
+                                              .holdInit()
+                                              .install();
+
+        InitCalls calls = initializeConcurrently(4, 10);
+        assertEquals(1, sdk.getInitCount());
+
+        sdk.completeInit();
+        for (OnFyberMarketplaceInitializedListener.FyberInitStatus result : calls.awaitResults()) {
+            assertEquals(OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED, result);
+        }
+
+        // All callers were notified, so the state is failed. The next caller starts a new initialization
+        sdk.holdInit();
+        initializeConcurrently(1, 1);
+        assertEquals(2, sdk.getInitCount());
+        sdk.completeInit();
+    }
+
+    /**
+     * Starts a burst of loads on the main thread, and checks the outcomes against the fake SDK's configuration
+     * @param format the format of the adapters, or null for rewarded adapters, which share the interstitial format
+     */
+    private void runBurst(final FyberAdFormat format, long seed) throws InterruptedException {
+        FakeFyberSdk sdk = new FakeFyberSdk(seed).requestLatency(FakeFyberSdk.logNormal(250, 0.8))
+                                                 .initLatency(FakeFyberSdk.uniform(50, 150))
+                                                 .fillRate(FILL_RATE)
+                                                 .stallRate(STALL_RATE)
+                                                 .errorCodes(SDK_ERRORS)
+                                                 .install();
+
+        // Distinct ad unit and spot ids per run, so that runs do not share any per spot state
+        String spotId = "burst-" + seed + "-" + SystemClock.elapsedRealtime();
+        Map<String, String> extras = new HashMap<>();
+        extras.put(FyberMopubMediationDefs.REMOTE_KEY_APP_ID, APP_ID);
+        extras.put(FyberMopubMediationDefs.REMOTE_KEY_SPOT_ID, spotId);
+        extras.put(FyberMopubMediationDefs.REMOTE_KEY_LOAD_TIMEOUT, String.valueOf(LOAD_TIMEOUT_MILLIS));
+        final AdData adData = new AdData.Builder().adUnit(spotId).extras(extras).build();
+
+        final LoadRecorder recorder = new LoadRecorder(BURST_SIZE);
+        final List<BaseAd> adapters = new ArrayList<>(BURST_SIZE);
+        long burstStart = SystemClock.elapsedRealtime();
+        mScenario.onActivity(new ActivityScenario.ActivityAction<SimulationActivity>() {
+            @Override
+            public void perform(SimulationActivity activity) {
+                for (int i = 0; i < BURST_SIZE; i++) {
+                    BaseAd adapter = createAdapter(format);
+                    adapters.add(adapter);
+                    recorder.startLoad(adapter, activity, adData);
+                }
+            }
+        });
+
+        assertTrue("loads did not complete", recorder.await(BURST_TIMEOUT_MILLIS));
+        long burstMillis = SystemClock.elapsedRealtime() - burstStart;
+        Log.i(LOG_TAG, "format=" + (format != null ? format : "REWARDED") + " loads=" + BURST_SIZE + " durationMs=" + burstMillis +
+                " loadsPerSecond=" + (BURST_SIZE * 1000L / Math.max(1, burstMillis)) + " " + recorder);
+
+        mScenario.onActivity(new ActivityScenario.ActivityAction<SimulationActivity>() {
+            @Override
+            public void perform(SimulationActivity activity) {
+                for (BaseAd adapter : adapters) {
+                    BaseAdDriver.invalidate(adapter);
+                }
+            }
+        });
+
+        // All loads start before any request is answered, so neither the no fill backoff nor the circuit breaker can skip a load
+        assertEquals("a load completed more than once", 0, recorder.getDuplicates());
+        assertEquals("every load sends a single request", BURST_SIZE, sdk.getRequestCount());
+        assertEquals(BURST_SIZE, recorder.getLoaded() + recorder.getFailed());
+        assertEquals("fills do not match the fill rate", FILL_RATE * (1 - STALL_RATE) * BURST_SIZE, recorder.getLoaded(),
+                     FILL_TOLERANCE * BURST_SIZE);
+        for (MoPubErrorCode errorCode : recorder.getErrorCodes()) {
+            assertTrue("unexpected error reported - " + errorCode, REPORTED_ERRORS.contains(errorCode));
+        }
+
+        // Each load sent a single request, so the error stats count exactly the reported outcomes
+        FyberErrorStats.Snapshot snapshot = snapshotOf(spotId);
+        Log.i(LOG_TAG, snapshot.toString());
+        assertEquals("timeouts do not match the stall rate", STALL_RATE * BURST_SIZE, snapshot.timeouts, FILL_TOLERANCE * BURST_SIZE);
+        assertEquals(recorder.getLoaded(), snapshot.fills);
+        assertEquals(recorder.getFailed(), snapshot.timeouts + snapshot.errors);
+        assertEquals(recorder.getErrorCount(MoPubErrorCode.NO_FILL), errorCountOf(snapshot, InneractiveErrorCode.NO_FILL));
+        assertEquals(recorder.getErrorCount(MoPubErrorCode.NO_CONNECTION), errorCountOf(snapshot, InneractiveErrorCode.CONNECTION_ERROR));
+        assertEquals("deadlines and connection timeouts are both reported as network timeouts",
+                     recorder.getErrorCount(MoPubErrorCode.NETWORK_TIMEOUT),
+                     snapshot.timeouts + errorCountOf(snapshot, InneractiveErrorCode.CONNECTION_TIMEOUT));
+    }
+
+    private static FyberErrorStats.Snapshot snapshotOf(String spotId) {
+        for (FyberErrorStats.Snapshot snapshot : FyberErrorStats.getSnapshots(FyberErrorStats.MAX_WINDOW_MILLIS)) {
+            if (spotId.equals(snapshot.spotId)) {
+                return snapshot;
+            }
+        }
+        throw new AssertionError("no error stats for " + spotId);
+    }
+
+    private static long errorCountOf(FyberErrorStats.Snapshot snapshot, InneractiveErrorCode errorCode) {
+        Long count = snapshot.errorCounts.get(errorCode);
+        return count == null ? 0 : count;
+    }
+
+    private static BaseAd createAdapter(FyberAdFormat format) {
+        if (format == FyberAdFormat.BANNER) {
+            return new FyberBannerForMopub();
+        }
+        return format == FyberAdFormat.INTERSTITIAL ? new FyberInterstitialForMopub() : new FyberRewardedVideoForMopub();
+    }
+
+    /**
+     * Calls initializeFyberMarketplace from several threads at once. Returns once all calls have returned
+     */
+    private static InitCalls initializeConcurrently(int threadCount, final int callsPerThread) throws InterruptedException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final InitCalls calls = new InitCalls(threadCount * callsPerThread);
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch returned = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int firstIndex = t * callsPerThread;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        startSignal.await();
+                        for (int i = 0; i < callsPerThread; i++) {
+                            FyberAdapterConfiguration.initializeFyberMarketplace(context, APP_ID, false, calls.listenerAt(firstIndex + i));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        returned.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        // Release the workers together, once all of them are waiting
+        assertTrue("workers did not start", ready.await(5, TimeUnit.SECONDS));
+        startSignal.countDown();
+        assertTrue("initialization calls did not return", returned.await(5, TimeUnit.SECONDS));
+        return calls;
+    }
+
+    /**
+     * The results of concurrent initializeFyberMarketplace calls
+     */
+    private static final class InitCalls {
+        private final OnFyberMarketplaceInitializedListener.FyberInitStatus[] mResults;
+        private final CountDownLatch mResolved;
+
+        InitCalls(int count) {
+            mResults = new OnFyberMarketplaceInitializedListener.FyberInitStatus[count];
+            mResolved = new CountDownLatch(count);
+        }
+
+        FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener listenerAt(final int index) {
+            return new FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener() {
+                @Override
+                public void onFyberAdapterConfigurationResolved(OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
+                    mResults[index] = status;
+                    mResolved.countDown();
+                }
+            };
+        }
+
+        OnFyberMarketplaceInitializedListener.FyberInitStatus[] awaitResults() throws InterruptedException {
+            assertTrue("initialization listeners were not called", mResolved.await(5, TimeUnit.SECONDS));
+            return mResults;
+        }
+    }
+
+    /**
+     * Starts loads, and collects their outcomes and latencies. Used from the main thread
+     */
+    private static final class LoadRecorder {
+        private final static AdLifecycleListener.InteractionListener NO_OP_INTERACTION_LISTENER =
+                (AdLifecycleListener.InteractionListener) Proxy.newProxyInstance(AdLifecycleListener.InteractionListener.class.getClassLoader(),
+                        new Class<?>[]{AdLifecycleListener.InteractionListener.class}, new InvocationHandler() {
+                            @Override
+                            public Object invoke(Object proxy, Method method, Object[] args) {
+                                return null;
+                            }
+                        });
+
+        private final long[] mLatencies;
+        private final CountDownLatch mDone;
+        private final Map<MoPubErrorCode, Integer> mErrorCounts = new EnumMap<>(MoPubErrorCode.class);
+        private int mCount;
+        private int mLoaded;
+        private int mFailed;
+        private int mDuplicates;
+
+        LoadRecorder(int loads) {
+            mLatencies = new long[loads];
+            mDone = new CountDownLatch(loads);
+        }
+
+        void startLoad(BaseAd adapter, SimulationActivity activity, AdData adData) {
+            final long loadStart = SystemClock.elapsedRealtime();
+            AdLifecycleListener.LoadListener loadListener = new AdLifecycleListener.LoadListener() {
+                private boolean mCompleted;
+
+                @Override
+                public void onAdLoaded() {
+                    if (complete(loadStart)) {
+                        mLoaded++;
+                        mDone.countDown();
+                    }
+                }
+
+                @Override
+                public void onAdLoadFailed(@NonNull MoPubErrorCode errorCode) {
+                    if (complete(loadStart)) {
+                        mFailed++;
+                        Integer count = mErrorCounts.get(errorCode);
+                        mErrorCounts.put(errorCode, count == null ? 1 : count + 1);
+                        mDone.countDown();
+                    }
+                }
+
+                private boolean complete(long start) {
+                    if (mCompleted) {
+                        mDuplicates++;
+                        return false;
+                    }
+                    mCompleted = true;
+                    mLatencies[mCount++] = SystemClock.elapsedRealtime() - start;
+                    return true;
+                }
+            };
+
+            try {
+                BaseAdDriver.load(adapter, activity, adData, loadListener, NO_OP_INTERACTION_LISTENER);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        boolean await(long timeoutMillis) throws InterruptedException {
+            return mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // The getters are read after await(). Each load counts down after its own writes, which orders them before the reads
+        int getLoaded() {
+            return mLoaded;
+        }
+
+        int getFailed() {
+            return mFailed;
+        }
+
+        int getDuplicates() {
+            return mDuplicates;
+        }
+
+        Set<MoPubErrorCode> getErrorCodes() {
+            return mErrorCounts.keySet();
+        }
+
+        long getErrorCount(MoPubErrorCode errorCode) {
+            Integer count = mErrorCounts.get(errorCode);
+            return count == null ? 0 : count;
+        }
+
+        @Override
+        public String toString() {
+            long[] latencies = Arrays.copyOf(mLatencies, mCount);
+            Arrays.sort(latencies);
+            return "loaded=" + mLoaded + " failed=" + mFailed + " errors=" + mErrorCounts +
+                    " p50Ms=" + percentile(latencies, 0.5) + " p95Ms=" + percentile(latencies, 0.95) + " p99Ms=" + percentile(latencies, 0.99);
+        }
+
+        private static long percentile(long[] sortedLatencies, double fraction) {
+            if (sortedLatencies.length == 0) {
+                return -1;
+            }
+            return sortedLatencies[Math.min(sortedLatencies.length - 1, (int) (fraction * sortedLatencies.length))];
+        }
+    }
+}
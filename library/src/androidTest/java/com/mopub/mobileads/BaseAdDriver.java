@@ -0,0 +1,53 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.mopub.mobileads;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Drives a {@link BaseAd} the way Mopub's ad adapters do, so that the load simulation runs the real custom adapter classes
+ * <br>Lives in Mopub's package, as the listeners and the life cycle methods of BaseAd are only visible from there
+ */
+public final class BaseAdDriver {
+    private BaseAdDriver() {
+    }
+
+    /**
+     * Attaches the listeners, initializes the network for the launcher Activity, and starts a load. Must be called from the main thread
+     * @param baseAd a new custom adapter instance. Mopub creates one per load
+     * @param activity the launcher Activity
+     * @param adData the ad unit's data
+     * @param loadListener receives the load result
+     * @param interactionListener receives the display events
+     */
+    public static void load(@NonNull BaseAd baseAd, @NonNull Activity activity, @NonNull AdData adData,
+                            @NonNull AdLifecycleListener.LoadListener loadListener,
+                            @NonNull AdLifecycleListener.InteractionListener interactionListener) throws Exception {
+        baseAd.mLoadListener = loadListener;
+        baseAd.mInteractionListener = interactionListener;
+        baseAd.checkAndInitializeSdk(activity, adData);
+        baseAd.load(activity, adData);
+    }
+
+    /**
+     * Invalidates the adapter, the way Mopub does once the ad is no longer needed
+     */
+    public static void invalidate(@NonNull BaseAd baseAd) {
+        baseAd.onInvalidate();
+    }
+}
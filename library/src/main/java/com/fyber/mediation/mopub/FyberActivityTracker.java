@@ -0,0 +1,233 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tracks the application's foreground Activity, so that the adapters never need to keep an Activity reference of their own
+ * <br>Only weak references are kept. In addition, a debug leak detector can report Activities which were handed to the adapters,
+ * and are still reachable a while after they were destroyed. Use {@link #setLeakDetectionEnabled(boolean)} and
+ * {@link #dumpRetainedActivities(PrintWriter)}
+ */
+public final class FyberActivityTracker {
+    /** Time after an Activity was destroyed, from which it is reported as retained if it is still reachable */
+    private final static long RETAINED_AFTER_MILLIS = 10 * 1000L;
+
+    private static boolean sRegistered;
+    private static WeakReference<Activity> sForegroundActivity = new WeakReference<>(null);
+    /** False once the foreground Activity was paused, until an Activity is resumed again */
+    private static boolean sForegroundResumed;
+
+    private static volatile boolean sLeakDetectionEnabled;
+    /** Activities handed to the adapters, while leak detection is enabled */
+    private final static List<WatchedActivity> sWatchedActivities = new ArrayList<>();
+
+    private FyberActivityTracker() {
+    }
+
+    /**
+     * Starts tracking the foreground Activity. Safe to call more than once
+     * @param context Android's context
+     */
+    static synchronized void init(@NonNull Context context) {
+        if (sRegistered) {
+            return;
+        }
+
+        Context applicationContext = context.getApplicationContext();
+        if (!(applicationContext instanceof Application)) {
+            return;
+        }
+        sRegistered = true;
+
+        // The given context may already be the foreground Activity
+        if (context instanceof Activity) {
+            sForegroundActivity = new WeakReference<>((Activity) context);
+            sForegroundResumed = true;
+        }
+
+        ((Application) applicationContext).registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(@NonNull Activity activity) {
+            }
+
+            @Override
+            public void onActivityResumed(@NonNull Activity activity) {
+                synchronized (FyberActivityTracker.class) {
+                    sForegroundActivity = new WeakReference<>(activity);
+                    sForegroundResumed = true;
+                }
+            }
+
+            @Override
+            public void onActivityPaused(@NonNull Activity activity) {
+                synchronized (FyberActivityTracker.class) {
+                    if (sForegroundActivity.get() == activity) {
+                        sForegroundResumed = false;
+                    }
+                }
+            }
+
+            @Override
+            public void onActivityStopped(@NonNull Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(@NonNull Activity activity) {
+                onDestroyed(activity);
+            }
+        });
+    }
+
+    /**
+     * @return the Activity which is currently resumed, or null if there is none, or if it is finishing
+     */
+    @Nullable
+    static synchronized Activity getForegroundActivity() {
+        Activity activity = sForegroundActivity.get();
+        return sForegroundResumed && isAlive(activity) ? activity : null;
+    }
+
+    /**
+     * @return true if the foreground Activity is being tracked. Otherwise its resumed state is unknown
+     */
+    static synchronized boolean isTracking() {
+        return sRegistered;
+    }
+
+    /**
+     * @param activity an Activity, or null
+     * @return true if the Activity is neither finishing nor destroyed
+     */
+    static boolean isAlive(@Nullable Activity activity) {
+        if (activity == null || activity.isFinishing()) {
+            return false;
+        }
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1 || !activity.isDestroyed();
+    }
+
+    /**
+     * Enables the leak detector. Intended for debug builds
+     * @param enabled true in order to watch the Activities handed to the adapters
+     */
+    public static void setLeakDetectionEnabled(boolean enabled) {
+        sLeakDetectionEnabled = enabled;
+        if (!enabled) {
+            synchronized (sWatchedActivities) {
+                sWatchedActivities.clear();
+            }
+        }
+    }
+
+    /**
+     * Records that an adapter was handed the given Activity, if leak detection is enabled
+     * @param adapter the adapter's name
+     * @param activity the Activity
+     */
+    static void watch(@NonNull String adapter, @Nullable Activity activity) {
+        if (!sLeakDetectionEnabled || activity == null) {
+            return;
+        }
+
+        synchronized (sWatchedActivities) {
+            for (WatchedActivity watched : sWatchedActivities) {
+                if (watched.adapter.equals(adapter) && watched.activity.get() == activity) {
+                    return;
+                }
+            }
+            sWatchedActivities.add(new WatchedActivity(adapter, activity));
+        }
+    }
+
+    private static void onDestroyed(Activity activity) {
+        synchronized (FyberActivityTracker.class) {
+            if (sForegroundActivity.get() == activity) {
+                sForegroundActivity = new WeakReference<>(null);
+                sForegroundResumed = false;
+            }
+        }
+
+        synchronized (sWatchedActivities) {
+            long now = SystemClock.elapsedRealtime();
+            for (WatchedActivity watched : sWatchedActivities) {
+                if (watched.activity.get() == activity) {
+                    watched.destroyedTime = now;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the Activities which were destroyed a while ago, and are still reachable, per adapter. Run a garbage collection
+     * before calling this, for meaningful results
+     * @param writer the report's destination
+     */
+    public static void dumpRetainedActivities(@NonNull PrintWriter writer) {
+        writer.println("Fyber adapter retained activities (leak detection enabled=" + sLeakDetectionEnabled + "):");
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sWatchedActivities) {
+            Iterator<WatchedActivity> iterator = sWatchedActivities.iterator();
+            while (iterator.hasNext()) {
+                WatchedActivity watched = iterator.next();
+                Activity activity = watched.activity.get();
+                if (activity == null) {
+                    iterator.remove();
+                } else if (watched.destroyedTime > 0 && now - watched.destroyedTime >= RETAINED_AFTER_MILLIS) {
+                    writer.println("  adapter=" + watched.adapter + " activity=" + activity.getClass().getName() +
+                                           " msSinceDestroyed=" + (now - watched.destroyedTime));
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * An Activity which was handed to an adapter
+     */
+    private static final class WatchedActivity {
+        final String adapter;
+        final WeakReference<Activity> activity;
+        long destroyedTime;
+
+        WatchedActivity(String adapter, Activity activity) {
+            this.adapter = adapter;
+            this.activity = new WeakReference<>(activity);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdViewUnitController;
+import com.fyber.inneractive.sdk.external.InneractiveFullscreenUnitController;
+import com.fyber.inneractive.sdk.external.InneractiveUnitController;
+
+/**
+ * The ad formats supported by the custom adapter classes
+ */
+public enum FyberAdFormat {
+    BANNER,
+    INTERSTITIAL,
+    REWARDED;
+
+    /**
+     * @return a new unit controller, matching this format
+     */
+    InneractiveUnitController createUnitController() {
+        return this == BANNER ? new InneractiveAdViewUnitController() : new InneractiveFullscreenUnitController();
+    }
+}
@@ -0,0 +1,397 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdRequest;
+import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
+import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Adapter level inventory of ready spots, keyed by Fyber's spot id
+ * <br>When enabled, a load request can be completed from memory with a spot that was requested ahead of time,
+ * while a replacement spot is requested in the background
+ * <br>Used for prefetching fullscreen ads, and for loading standby banners of double buffered banner ad units
+ */
+class FyberAdInventoryCache {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberAdInventoryCache";
+
+    /** Maximal number of ready spots kept per spot id */
+    final static int MAX_DEPTH = 3;
+    /** Default amount of time in which a cached spot is considered usable */
+    final static long DEFAULT_TTL_MILLIS = 30 * 60 * 1000L;
+    /** A background request which has not completed within this time is abandoned, so that it stops counting as pending */
+    final static long REQUEST_DEADLINE_MILLIS = 60 * 1000L;
+
+    private final static Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final static FyberAdInventoryCache sInstance = new FyberAdInventoryCache();
+
+    /** Ready spots, oldest first */
+    private final Map<String, ArrayDeque<CachedSpot>> mReadySpots = new HashMap<>();
+    /** Number of background requests currently running, per spot id */
+    private final Map<String, Integer> mPendingRequests = new HashMap<>();
+    /** Depths defined for specific spots, overriding the global depth */
+    private final Map<String, Integer> mSpotDepths = new HashMap<>();
+
+    private volatile int mDepth = 0;
+    private volatile long mTtlMillis = DEFAULT_TTL_MILLIS;
+
+    static FyberAdInventoryCache get() {
+        return sInstance;
+    }
+
+    private FyberAdInventoryCache() {
+    }
+
+    /**
+     * Sets the number of ready spots to keep per spot id. 0 disables the cache
+     * @param depth requested depth. Clamped to {@link #MAX_DEPTH}
+     */
+    void setDepth(int depth) {
+        mDepth = Math.max(0, Math.min(depth, MAX_DEPTH));
+        if (mDepth == 0) {
+            clear();
+        }
+    }
+
+    /**
+     * Sets the amount of time after which a cached spot is evicted, even if it still reports being ready
+     * @param ttlMillis time to live in milliseconds
+     */
+    void setTtlMillis(long ttlMillis) {
+        if (ttlMillis > 0) {
+            mTtlMillis = ttlMillis;
+        }
+    }
+
+    /**
+     * @return the amount of time in which a loaded spot is considered usable
+     */
+    long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    /**
+     * Sets the number of ready spots to keep for a specific spot id, overriding the global depth
+     * @param spotId Fyber's spot id
+     * @param depth requested depth. Clamped to {@link #MAX_DEPTH}
+     */
+    synchronized void setDepth(String spotId, int depth) {
+        mSpotDepths.put(spotId, Math.max(0, Math.min(depth, MAX_DEPTH)));
+    }
+
+    /**
+     * Takes the oldest ready spot for the given spot id out of the cache. Expired and no longer ready spots are evicted on the way
+     * @param spotId Fyber's spot id
+     * @param minRemainingMillis spots which expire within this time are evicted as well
+     * @return a cached spot which is ready to be shown, or null if none is available
+     */
+    @Nullable
+    private CachedSpot pollEntry(String spotId, long minRemainingMillis) {
+        ArrayDeque<CachedSpot> spots = mReadySpots.get(spotId);
+        if (spots == null) {
+            return null;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        CachedSpot cachedSpot;
+        while ((cachedSpot = spots.pollFirst()) != null) {
+            if (now - cachedSpot.loadTime < mTtlMillis - minRemainingMillis && cachedSpot.spot.isReady()) {
+                return cachedSpot;
+            }
+            log("evicting stale spot for ", spotId);
+            FyberSpotPool.get().release(cachedSpot.spot);
+        }
+        return null;
+    }
+
+    /**
+     * Takes a ready spot for the first of the given spot ids which has one
+     * @param spotIds Fyber's spot ids, by order of preference
+     * @return a spot which is ready to be shown, or null if none is available
+     */
+    @Nullable
+    synchronized InneractiveAdSpot poll(String[] spotIds) {
+        CachedSpot cachedSpot = pollEntry(spotIds);
+        return cachedSpot != null ? cachedSpot.spot : null;
+    }
+
+    /**
+     * Takes a ready spot for the first of the given spot ids which has one, together with its load time
+     * @param spotIds Fyber's spot ids, by order of preference
+     * @return a cached spot which is ready to be shown, or null if none is available
+     */
+    @Nullable
+    synchronized CachedSpot pollEntry(String[] spotIds) {
+        return pollEntry(spotIds, 0);
+    }
+
+    /**
+     * Takes a ready spot which is still usable for at least the given time, for the first of the given spot ids which has one
+     * @param spotIds Fyber's spot ids, by order of preference
+     * @param minRemainingMillis spots which expire within this time are evicted, rather than returned
+     * @return a cached spot which is ready to be shown, or null if none is available
+     */
+    @Nullable
+    synchronized CachedSpot pollEntry(String[] spotIds, long minRemainingMillis) {
+        for (String spotId : spotIds) {
+            CachedSpot cachedSpot = pollEntry(spotId, minRemainingMillis);
+            if (cachedSpot != null) {
+                return cachedSpot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Requests spots in the background, until the cache holds the configured number of ready spots for the given spot id
+     * @param format the format of the requesting adapter
+     * @param spotId Fyber's spot id
+     * @param localExtras local extras, used for populating the ad requests
+     */
+    void refill(FyberAdFormat format, String spotId, Map<String, String> localExtras) {
+        // Background requests are never sent while the circuit breaker is not closed
+        if (FyberNoFillBackoff.isBackingOff(spotId) || !FyberCircuitBreaker.isClosed()) {
+            return;
+        }
+
+        int missing = reserveRequests(spotId);
+        for (int i = 0; i < missing; i++) {
+            InneractiveAdSpot spot = FyberSpotPool.get().acquire(format);
+
+            InneractiveAdRequest request = new InneractiveAdRequest(spotId);
+            FyberAdapterConfiguration.updateRequestFromExtras(request, localExtras);
+
+            spot.setRequestListener(new BackgroundRequest(format, spotId, spot));
+            spot.requestAd(request);
+        }
+    }
+
+    /**
+     * @param spotId Fyber's spot id
+     * @return true if ready spots are kept for the given spot id
+     */
+    boolean isEnabledFor(String spotId) {
+        return depthOf(spotId) > 0;
+    }
+
+    /**
+     * Takes over a spot whose request is still in progress, and keeps it once it has loaded, as long as the spot id's depth allows it.
+     * Used for the spots which have lost a race, so that their ads are not wasted
+     * @param format the format of the spot
+     * @param spotId the spot id which was requested
+     * @param spot a spot with a request in progress
+     */
+    void park(FyberAdFormat format, String spotId, InneractiveAdSpot spot) {
+        synchronized (this) {
+            Integer pending = mPendingRequests.get(spotId);
+            mPendingRequests.put(spotId, pending == null ? 1 : pending + 1);
+        }
+
+        spot.setRequestListener(new BackgroundRequest(format, spotId, spot));
+    }
+
+    /**
+     * Destroys all cached spots
+     */
+    synchronized void clear() {
+        for (ArrayDeque<CachedSpot> spots : mReadySpots.values()) {
+            for (CachedSpot cachedSpot : spots) {
+                FyberSpotPool.get().release(cachedSpot.spot);
+            }
+        }
+        mReadySpots.clear();
+    }
+
+    /**
+     * Marks the number of missing spots for the given spot id as pending, and returns it
+     */
+    private synchronized int reserveRequests(String spotId) {
+        int depth = depthOf(spotId);
+        if (depth == 0) {
+            return 0;
+        }
+
+        ArrayDeque<CachedSpot> spots = mReadySpots.get(spotId);
+        int ready = spots == null ? 0 : spots.size();
+        Integer pending = mPendingRequests.get(spotId);
+        int current = pending == null ? 0 : pending;
+        int missing = depth - ready - current;
+        if (missing <= 0) {
+            return 0;
+        }
+
+        mPendingRequests.put(spotId, current + missing);
+        return missing;
+    }
+
+    private synchronized int depthOf(String spotId) {
+        Integer spotDepth = mSpotDepths.get(spotId);
+        return spotDepth != null ? spotDepth : mDepth;
+    }
+
+    private synchronized void releaseRequest(String spotId) {
+        Integer pending = mPendingRequests.get(spotId);
+        if (pending == null || pending <= 1) {
+            mPendingRequests.remove(spotId);
+        } else {
+            mPendingRequests.put(spotId, pending - 1);
+        }
+    }
+
+    /**
+     * Adds a loaded spot to the cache
+     */
+    private synchronized void offer(String spotId, InneractiveAdSpot spot) {
+        releaseRequest(spotId);
+
+        ArrayDeque<CachedSpot> spots = mReadySpots.get(spotId);
+        if (spots == null) {
+            spots = new ArrayDeque<>();
+            mReadySpots.put(spotId, spots);
+        }
+
+        // The depth may have been reduced while the request was running
+        if (spots.size() >= depthOf(spotId)) {
+            FyberSpotPool.get().release(spot);
+            return;
+        }
+
+        spots.addLast(new CachedSpot(spot, SystemClock.elapsedRealtime()));
+        evictExpired(spots);
+    }
+
+    private void evictExpired(ArrayDeque<CachedSpot> spots) {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<CachedSpot> iterator = spots.iterator();
+        while (iterator.hasNext()) {
+            CachedSpot cachedSpot = iterator.next();
+            if (now - cachedSpot.loadTime >= mTtlMillis) {
+                iterator.remove();
+                FyberSpotPool.get().release(cachedSpot.spot);
+            }
+        }
+    }
+
+    /**
+     * A spot which is loading in the background, on behalf of the cache
+     * <br>Its ad is offered to the cache once loaded. If the request has not completed by its deadline, the spot is destroyed
+     * and its pending slot is released, so that a hung request never blocks the refill of its spot id
+     */
+    private class BackgroundRequest implements InneractiveAdSpot.RequestListener {
+        private final FyberAdFormat mFormat;
+        private final String mSpotId;
+        private final InneractiveAdSpot mSpot;
+        private boolean mCompleted;
+
+        private final Runnable mDeadlineRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (!mCompleted) {
+                    mCompleted = true;
+                    log("background request has reached its deadline for ", mSpotId);
+                    FyberErrorStats.onSpotTimedOut(mSpotId);
+                    releaseRequest(mSpotId);
+                    FyberSpotPool.get().release(mSpot);
+                }
+            }
+        };
+
+        BackgroundRequest(FyberAdFormat format, String spotId, InneractiveAdSpot spot) {
+            mFormat = format;
+            mSpotId = spotId;
+            mSpot = spot;
+            sMainHandler.postDelayed(mDeadlineRunnable, REQUEST_DEADLINE_MILLIS);
+        }
+
+        @Override
+        public void onInneractiveSuccessfulAdRequest(InneractiveAdSpot adSpot) {
+            if (mCompleted) {
+                return;
+            }
+            mCompleted = true;
+            sMainHandler.removeCallbacks(mDeadlineRunnable);
+
+            log("background spot is ready for ", mSpotId);
+            FyberNoFillBackoff.onFill(mSpotId);
+            FyberCircuitBreaker.onRequestCompleted(FyberCircuitBreaker.NO_TOKEN, null);
+            FyberErrorStats.onSpotLoaded(mSpotId);
+            offer(mSpotId, mSpot);
+        }
+
+        @Override
+        public void onInneractiveFailedAdRequest(InneractiveAdSpot adSpot, InneractiveErrorCode errorCode) {
+            if (mCompleted) {
+                return;
+            }
+            mCompleted = true;
+            sMainHandler.removeCallbacks(mDeadlineRunnable);
+
+            if (FyberAdapterLog.isLoggable()) {
+                log("background request failed for " + mSpotId + " with error: " + errorCode);
+            }
+            if (errorCode == InneractiveErrorCode.NO_FILL) {
+                FyberNoFillBackoff.onNoFill(mSpotId);
+            }
+            FyberCircuitBreaker.onRequestCompleted(FyberCircuitBreaker.NO_TOKEN, errorCode);
+            FyberErrorStats.onSpotFailed(mSpotId, errorCode);
+            releaseRequest(mSpotId);
+            FyberSpotPool.get().recycle(mFormat, mSpot);
+        }
+    }
+
+    /**
+     * A ready spot, and the time in which it has finished loading
+     */
+    static class CachedSpot {
+        final InneractiveAdSpot spot;
+        final long loadTime;
+
+        CachedSpot(InneractiveAdSpot spot, long loadTime) {
+            this.spot = spot;
+            this.loadTime = loadTime;
+        }
+    }
+
+    /**
+     * MopubLog helper
+     * @param message
+     */
+    private static void log(String message) {
+        FyberAdapterLog.log(LOG_TAG, message);
+    }
+
+    /**
+     * MopubLog helper, which concatenates the value only if logging is enabled
+     * @param message
+     * @param value
+     */
+    private static void log(String message, Object value) {
+        FyberAdapterLog.log(LOG_TAG, message, value);
+    }
+}
@@ -16,6 +16,10 @@
 package com.fyber.mediation.mopub;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -24,20 +28,23 @@ import androidx.annotation.Nullable;
 
 import com.fyber.inneractive.sdk.external.InneractiveAdManager;
 import com.fyber.inneractive.sdk.external.InneractiveAdRequest;
-import com.fyber.inneractive.sdk.external.InneractiveUserConfig;
 import com.fyber.inneractive.sdk.external.OnFyberMarketplaceInitializedListener;
 import com.mopub.common.BaseAdapterConfiguration;
 import com.mopub.common.MoPub;
 import com.mopub.common.OnNetworkInitializationFinishedListener;
 import com.mopub.common.Preconditions;
-import com.mopub.common.logging.MoPubLog;
 import com.mopub.common.privacy.ConsentStatus;
+import com.mopub.common.privacy.ConsentStatusChangeListener;
 import com.mopub.common.privacy.PersonalInfoManager;
 import com.mopub.mobileads.MoPubErrorCode;
 
+import java.io.PrintWriter;
 import java.util.Map;
-
-import static com.mopub.common.logging.MoPubLog.AdapterLogEvent.CUSTOM;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Fyber's instance of Mopub adapter configuration class
@@ -56,6 +63,109 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
      * Set to 1" or "true" in order to enable Fyber marketplace debug mode
      */
     public final static String KEY_FYBER_DEBUG = "debug";
+    /**
+     * Number of ready interstitial / rewarded ads to keep in memory per spot. Set to "0" or omit in order to disable prefetching
+     */
+    public final static String KEY_FYBER_PREFETCH_DEPTH = "prefetchDepth";
+    /**
+     * Time in milliseconds in which a prefetched ad is considered usable. Omit in order to keep the default of 30 minutes
+     */
+    public final static String KEY_FYBER_CACHE_TTL = "cacheTtlMs";
+    /**
+     * Set to {@link #INIT_MODE_IDLE} in order to defer the Fyber marketplace initialization until the main thread is idle.
+     * Omit in order to initialize as soon as Mopub initializes the network
+     */
+    public final static String KEY_FYBER_INIT_MODE = "initMode";
+    /**
+     * Number of WebViews, up to 2, to keep alive after the SDK was initialized, so that the first rendered ad does not pay for
+     * the WebView renderer startup. Set to "0" or omit in order to disable the warm up
+     */
+    public final static String KEY_FYBER_WEB_VIEW_WARM_UP = "webViewWarmUp";
+
+    // Initialization modes
+    /**
+     * The SDK is initialized right away, in parallel with Mopub's own initialization. See {@link #initializeEagerly}
+     */
+    public final static String INIT_MODE_EAGER = "eager";
+    /**
+     * The SDK is initialized once the main thread is idle, off the cold start critical path. See {@link #initializeWhenIdle}
+     */
+    public final static String INIT_MODE_IDLE = "idle";
+    /** The SDK is initialized when Mopub initializes the network, or by the first load request */
+    private final static String INIT_MODE_ON_DEMAND = "onDemand";
+
+    // SDK initialization states
+    private final static int INIT_STATE_IDLE = 0;
+    private final static int INIT_STATE_INITIALIZING = 1;
+    private final static int INIT_STATE_READY = 2;
+    private final static int INIT_STATE_FAILED = 3;
+
+    private final static AtomicInteger sInitState = new AtomicInteger(INIT_STATE_IDLE);
+    /** Listeners waiting for the pending initialization to complete, with the application id each of them has requested */
+    private final static Queue<PendingInitListener> sPendingInitListeners = new ConcurrentLinkedQueue<>();
+
+    /** Initializes the SDK through Fyber's InneractiveAdManager */
+    private final static SdkInitializer SDK_INITIALIZER = new SdkInitializer() {
+        @Override
+        public void initialize(Context context, String appId, OnFyberMarketplaceInitializedListener listener) {
+            InneractiveAdManager.initialize(context, appId, listener);
+        }
+
+        @Override
+        public boolean wasInitialized() {
+            return InneractiveAdManager.wasInitialized();
+        }
+
+        @Override
+        public String getAppId() {
+            return InneractiveAdManager.getAppId();
+        }
+    };
+
+    private static volatile SdkInitializer sSdkInitializer = SDK_INITIALIZER;
+
+    /**
+     * Used by the scheduled initialization modes, which have no caller waiting for the result
+     */
+    private final static OnFyberAdapterConfigurationResolvedListener NO_OP_INIT_LISTENER = new OnFyberAdapterConfigurationResolvedListener() {
+        @Override
+        public void onFyberAdapterConfigurationResolved(OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
+        }
+    };
+
+    private final static Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /** An initialization which was deferred by {@link #initializeWhenIdle}, and has not started yet */
+    private final static AtomicReference<InitRequest> sScheduledInit = new AtomicReference<>();
+    /** The parameters of the last initialization which was started, so that loads with no application id of their own can wait for it */
+    private static volatile InitRequest sLastInitRequest;
+
+    // Initialization timing, reported by dumpInitTiming
+    private static volatile String sInitMode = INIT_MODE_ON_DEMAND;
+    /** The time the initialization was scheduled by one of the initialization modes */
+    private static volatile long sInitScheduledTime;
+    private static volatile long sInitStartTime;
+    private static volatile long sInitCompletedTime;
+
+    // GDPR consent snapshot values
+    private final static int GDPR_CONSENT_UNRESOLVED = -1;
+    private final static int GDPR_CONSENT_NONE = 0;
+    private final static int GDPR_CONSENT_GIVEN = 1;
+    private final static int GDPR_CONSENT_DENIED = 2;
+
+    // Bits of the Mopub settings the consent snapshot was resolved with
+    private final static int GDPR_INPUT_LEGITIMATE_INTEREST = 1;
+    private final static int GDPR_INPUT_APPLIES = 2;
+    private final static int GDPR_INPUT_NOT_APPLIES = 4;
+
+    /** Consent as last read from Mopub. Invalidated by Mopub's consent status change callback */
+    private static volatile int sGdprConsentSnapshot = GDPR_CONSENT_UNRESOLVED;
+    /** The Mopub settings the snapshot was resolved with. They change without a consent status change callback */
+    private static volatile int sGdprConsentSnapshotInputs;
+    /** Consent as last set on Fyber's SDK */
+    private static volatile int sAppliedGdprConsent = GDPR_CONSENT_UNRESOLVED;
+    private final static AtomicInteger sGdprConsentGeneration = new AtomicInteger();
+    private final static AtomicBoolean sConsentListenerSubscribed = new AtomicBoolean(false);
 
     /** 4-digit versioning scheme, of which the leftmost 3 digits correspond to the network SDK version,
      * and the last digit denotes the minor version number referring to an adapter release */
@@ -65,11 +175,18 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
         return InneractiveAdManager.getVersion() + ".0";
     }
 
+    /**
+     * Fyber Marketplace SDK 7.7.0 does not expose a bidding token API, so this adapter only supports the waterfall path.
+     * Returning null keeps Mopub from sending the network into an auction it cannot serve
+     * @param context
+     * @return always null
+     */
     @Nullable
     @Override
     public String getBiddingToken(@NonNull Context context) {
         return null;
     }
+
     /**
      * @return the name of Fyber's network
      */
@@ -99,10 +216,19 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
     public void initializeNetwork(@NonNull Context context, @Nullable Map<String, String> configuration, @NonNull
     final OnNetworkInitializationFinishedListener listener) {
         Preconditions.checkNotNull(context);
+        FyberActivityTracker.init(context);
 
         if (configuration != null) {
+            updateInventoryCacheFromConfiguration(configuration);
+            updateWebViewWarmUpFromConfiguration(context, configuration);
+
             final String appId = configuration.get(KEY_FYBER_APP_ID);
-            if (!TextUtils.isEmpty(appId)) {
+            if (!TextUtils.isEmpty(appId) && INIT_MODE_IDLE.equals(configuration.get(KEY_FYBER_INIT_MODE))) {
+                initializeWhenIdle(context, appId, configuration.containsKey(KEY_FYBER_DEBUG));
+                // Loads which arrive before the main thread is idle start the initialization right away, so Mopub does not need to wait.
+                // See initializePendingIfNeeded
+                listener.onNetworkInitializationFinished(FyberAdapterConfiguration.class, MoPubErrorCode.ADAPTER_INITIALIZATION_SUCCESS);
+            } else if (!TextUtils.isEmpty(appId)) {
                 initializeFyberMarketplace(context, appId,
                                            configuration.containsKey(KEY_FYBER_DEBUG),
                                            new OnFyberAdapterConfigurationResolvedListener() {
@@ -115,7 +241,7 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
                                                                    OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED) {
                                                        listener.onNetworkInitializationFinished(FyberAdapterConfiguration.class, MoPubErrorCode.ADAPTER_INITIALIZATION_SUCCESS);
                                                    } else if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.INVALID_APP_ID) {
-                                                       log("Attempted to initialize Fyber MarketPlace with wrong app id - " + appId);
+                                                       log("Attempted to initialize Fyber MarketPlace with wrong app id - ", appId);
                                                        listener.onNetworkInitializationFinished(FyberAdapterConfiguration.class, MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
                                                    } else {
                                                        listener.onNetworkInitializationFinished(FyberAdapterConfiguration.class, MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
@@ -129,9 +255,121 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
         }
     }
 
+    /**
+     * Enables the fullscreen inventory cache, if a prefetch depth was given in the configuration map, and sets its time to live
+     * @param configuration Key/Value Map of Fyber's configuration
+     */
+    private static void updateInventoryCacheFromConfiguration(@NonNull Map<String, String> configuration) {
+        String prefetchDepth = configuration.get(KEY_FYBER_PREFETCH_DEPTH);
+        if (!TextUtils.isEmpty(prefetchDepth)) {
+            try {
+                FyberAdInventoryCache.get().setDepth(Integer.parseInt(prefetchDepth));
+            } catch (NumberFormatException e) {
+                log("Invalid prefetch depth given in configuration - ", prefetchDepth);
+            }
+        }
+
+        String cacheTtl = configuration.get(KEY_FYBER_CACHE_TTL);
+        if (!TextUtils.isEmpty(cacheTtl)) {
+            try {
+                FyberAdInventoryCache.get().setTtlMillis(Long.parseLong(cacheTtl.trim()));
+            } catch (NumberFormatException e) {
+                log("Invalid cache TTL given in configuration - ", cacheTtl);
+            }
+        }
+    }
+
+    /**
+     * Starts the Fyber marketplace initialization right away. Call it from Application.onCreate, before initializing Mopub,
+     * so that both SDKs initialize in parallel. Later calls from Mopub or from load requests are coalesced onto this initialization
+     * @param context Android's context
+     * @param appId Fyber's application id
+     * @param debugMode if set to true, runs Fyber Marketplace with debug logs
+     */
+    public static void initializeEagerly(@NonNull Context context, @NonNull String appId, boolean debugMode) {
+        scheduleInitialization(INIT_MODE_EAGER);
+        initializeFyberMarketplace(context.getApplicationContext(), appId, debugMode, NO_OP_INIT_LISTENER);
+    }
+
+    /**
+     * Defers the Fyber marketplace initialization until the main thread's message queue is idle, so that it stays off the cold start
+     * critical path. A load request which arrives before that initializes the SDK right away, and the idle initialization is then skipped
+     * @param context Android's context
+     * @param appId Fyber's application id
+     * @param debugMode if set to true, runs Fyber Marketplace with debug logs
+     */
+    public static void initializeWhenIdle(@NonNull Context context, @NonNull String appId, boolean debugMode) {
+        scheduleInitialization(INIT_MODE_IDLE);
+        final InitRequest request = new InitRequest(context.getApplicationContext(), appId, debugMode);
+        sScheduledInit.set(request);
+
+        // Idle handlers can only be added to the current thread's queue
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (sScheduledInit.get() == request) {
+                    Looper.myQueue().addIdleHandler(request.idleHandler);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lets a load request which has no application id of its own wait for the SDK initialization. An initialization which was deferred
+     * by {@link #initializeWhenIdle} is started right away, and its idle handler is dropped
+     * @param listener receives the initialization result
+     * @return true if the listener will be called. false if no initialization was ever started or scheduled
+     */
+    static boolean initializePendingIfNeeded(@NonNull OnFyberAdapterConfigurationResolvedListener listener) {
+        final InitRequest scheduled = sScheduledInit.getAndSet(null);
+        if (scheduled != null) {
+            // Posted behind the runnable which adds the idle handler, so that it is removed even if it was not added yet
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Looper.myQueue().removeIdleHandler(scheduled.idleHandler);
+                }
+            });
+            initializeFyberMarketplace(scheduled.context, scheduled.appId, scheduled.debugMode, listener);
+            return true;
+        }
+
+        // An initialization which is in progress, or has failed and can be retried
+        InitRequest last = sLastInitRequest;
+        if (last != null) {
+            initializeFyberMarketplace(last.context, last.appId, last.debugMode, listener);
+            return true;
+        }
+        return false;
+    }
+
+    private static void scheduleInitialization(String mode) {
+        if (sInitState.get() == INIT_STATE_IDLE && sInitScheduledTime == 0) {
+            sInitMode = mode;
+            sInitScheduledTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Enables the WebView warm up, if a WebView count was given in the configuration map
+     * @param context Android's context
+     * @param configuration Key/Value Map of Fyber's configuration
+     */
+    private static void updateWebViewWarmUpFromConfiguration(@NonNull Context context, @NonNull Map<String, String> configuration) {
+        String webViewCount = configuration.get(KEY_FYBER_WEB_VIEW_WARM_UP);
+        if (!TextUtils.isEmpty(webViewCount)) {
+            try {
+                FyberWebViewWarmer.configure(context, Integer.parseInt(webViewCount));
+            } catch (NumberFormatException e) {
+                log("Invalid WebView warm up count given in configuration - ", webViewCount);
+            }
+        }
+    }
+
     /**
      * This method initializes the Fyber marketplace SDK, and returns true if the initialization was successfull. It can either be called from the initializeNetwork method
      * or called by one of the custom adapters classes, if the appId is only defined in the Mopub console
+     * <br>Concurrent callers are coalesced onto a single pending initialization, and are all notified with its result
      * @param context
      * @param appId Fyber's application id
      * @param debugMode if set to true, runs Fyber Marketplace with debug logs
@@ -139,52 +377,237 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
      */
     public static void initializeFyberMarketplace(Context context, String appId, boolean debugMode, @NonNull
     final OnFyberAdapterConfigurationResolvedListener listener) {
-        synchronized (FyberAdapterConfiguration.class) {
-            // Just to be on the safe side, wrap initialize with exception handling
-            if (debugMode) {
-                InneractiveAdManager.setLogLevel(Log.VERBOSE);
+        if (debugMode) {
+            InneractiveAdManager.setLogLevel(Log.VERBOSE);
+        }
+
+        // Fast path. No need to queue the listener, once the SDK is up
+        if (sInitState.get() == INIT_STATE_READY || sSdkInitializer.wasInitialized()) {
+            resolveInitialized(appId, sSdkInitializer.getAppId(), listener);
+            return;
+        }
+
+        sPendingInitListeners.add(new PendingInitListener(appId, listener));
+
+        while (true) {
+            int state = sInitState.get();
+            if (state == INIT_STATE_INITIALIZING) {
+                // The pending initialization will notify our listener
+                return;
+            }
+
+            if (state == INIT_STATE_READY) {
+                // Initialization has completed after our listener was queued. It may have missed the fan out
+                dispatchPendingInitListeners();
+                return;
+            }
+
+            // Idle, or a previous attempt has failed. Only a single caller gets to start the initialization
+            if (sInitState.compareAndSet(state, INIT_STATE_INITIALIZING)) {
+                sInitStartTime = SystemClock.elapsedRealtime();
+                sLastInitRequest = new InitRequest(context.getApplicationContext(), appId, debugMode);
+                // A deferred initialization is no longer needed. Its idle handler finds nothing to do
+                sScheduledInit.set(null);
+                final String initializedAppId = appId;
+                try {
+                    sSdkInitializer.initialize(context, appId,
+                                               new OnFyberMarketplaceInitializedListener() {
+                                                   @Override public void onFyberMarketplaceInitialized(
+                                                           FyberInitStatus status) {
+                                                       onFyberMarketplaceInitializationCompleted(status, initializedAppId);
+                                                   }
+                                               });
+                } catch (RuntimeException e) {
+                    // Otherwise the state stays initializing, and every later caller would wait forever
+                    Log.w(TAG, "Fyber marketplace initialization has thrown an exception", e);
+                    onFyberMarketplaceInitializationCompleted(OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED, initializedAppId);
+                }
+                return;
             }
+        }
+    }
+
+    /**
+     * Called when a pending initialization has completed. Publishes the new state, and fans out the result to all waiting listeners
+     * <br>After a successful initialization, listeners which have requested another application id are resolved with INVALID_APP_ID
+     * @param status Fyber's initialization status
+     * @param initializedAppId the application id the SDK was initialized with
+     */
+    private static void onFyberMarketplaceInitializationCompleted(OnFyberMarketplaceInitializedListener.FyberInitStatus status,
+                                                                  String initializedAppId) {
+        // The state must be published before draining, so that listeners queued from now on will drain themselves
+        sInitState.set(status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY ? INIT_STATE_READY : INIT_STATE_FAILED);
+        sInitCompletedTime = SystemClock.elapsedRealtime();
+        if (FyberAdapterLog.isLoggable()) {
+            log("Fyber marketplace initialization completed with status " + status + " in " + (sInitCompletedTime - sInitStartTime) +
+                        "ms. Mode - " + sInitMode);
+        }
+        if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY) {
+            FyberWebViewWarmer.onSdkInitialized();
+        }
 
-            if (!InneractiveAdManager.wasInitialized()) {
-                InneractiveAdManager.initialize(context, appId,
-                                                new OnFyberMarketplaceInitializedListener() {
-                                                    @Override public void onFyberMarketplaceInitialized(
-                                                            FyberInitStatus status) {
-                                                        listener.onFyberAdapterConfigurationResolved(status);
-                                                    }
-                                                });
-            } else if (!appId.equals(InneractiveAdManager.getAppId())) {
-                Log.w(TAG, "Fyber marketplace was initialized with appId " + InneractiveAdManager.getAppId() +
-                        " and now requests initialization with another appId (" + appId + ") You may have configured the wrong appId on the Mopub console?\n" +
-                        " you can only use a single appId and its related spots");
-                listener.onFyberAdapterConfigurationResolved(
-                        OnFyberMarketplaceInitializedListener.FyberInitStatus.INVALID_APP_ID);
+        PendingInitListener pending;
+        while ((pending = sPendingInitListeners.poll()) != null) {
+            if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY) {
+                resolveInitialized(pending.appId, initializedAppId, pending.listener);
             } else {
-                listener.onFyberAdapterConfigurationResolved(
-                        OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY);
+                pending.listener.onFyberAdapterConfigurationResolved(status);
             }
+        }
+    }
 
+    /**
+     * Writes the timing of the Fyber marketplace initialization: the mode which scheduled it, the delay from scheduling until it has
+     * started, and its duration
+     * @param writer the report's destination
+     */
+    static void dumpInitTiming(@NonNull PrintWriter writer) {
+        long scheduled = sInitScheduledTime;
+        long start = sInitStartTime;
+        long completed = sInitCompletedTime;
+        writer.println("Fyber marketplace initialization: mode=" + sInitMode +
+                               " scheduledToStartMs=" + (scheduled > 0 && start > 0 ? start - scheduled : -1) +
+                               " durationMs=" + (start > 0 && completed > 0 ? completed - start : -1));
+    }
+
+    /**
+     * Notifies all queued listeners, after the SDK was initialized
+     */
+    private static void dispatchPendingInitListeners() {
+        String initializedAppId = sSdkInitializer.getAppId();
+        PendingInitListener pending;
+        while ((pending = sPendingInitListeners.poll()) != null) {
+            resolveInitialized(pending.appId, initializedAppId, pending.listener);
+        }
+    }
+
+    /**
+     * Resolves a listener against an already initialized SDK
+     * @param appId the application id requested by the caller
+     * @param initializedAppId the application id the SDK was initialized with
+     * @param listener the caller's listener
+     */
+    private static void resolveInitialized(String appId, String initializedAppId, @NonNull OnFyberAdapterConfigurationResolvedListener listener) {
+        if (!appId.equals(initializedAppId)) {
+            Log.w(TAG, "Fyber marketplace was initialized with appId " + initializedAppId +
+                    " and now requests initialization with another appId (" + appId + ") You may have configured the wrong appId on the Mopub console?\n" +
+                    " you can only use a single appId and its related spots");
+            listener.onFyberAdapterConfigurationResolved(
+                    OnFyberMarketplaceInitializedListener.FyberInitStatus.INVALID_APP_ID);
+        } else {
+            listener.onFyberAdapterConfigurationResolved(
+                    OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY);
         }
     }
 
     /**
      * An helper for getting the current consent status from Mopub. Called before each load request
+     * <br>Mopub is only queried when its consent status has changed, and Fyber's SDK is only updated when the resolved value differs from the last one we have set
      */
     public static void updateGdprConsentStatusFromMopub() {
         InneractiveAdManager.GdprConsentSource gdprConsentSource = InneractiveAdManager.getGdprStatusSource();
         if (gdprConsentSource == null || gdprConsentSource == InneractiveAdManager.GdprConsentSource.External) {
-            Boolean mopubGdpr = extractGdprFromMopub();
-            if (mopubGdpr == null) {
-                InneractiveAdManager.clearGdprConsentData();
-            } else {
-                InneractiveAdManager.setGdprConsent(mopubGdpr, InneractiveAdManager.GdprConsentSource.External);
+            int gdprConsent = getGdprConsentSnapshot();
+
+            // If the SDK has no consent source, any data we have previously set was cleared
+            boolean sdkDataCleared = gdprConsentSource == null && gdprConsent != GDPR_CONSENT_NONE;
+            if (gdprConsent != sAppliedGdprConsent || sdkDataCleared) {
+                if (gdprConsent == GDPR_CONSENT_NONE) {
+                    InneractiveAdManager.clearGdprConsentData();
+                } else {
+                    InneractiveAdManager.setGdprConsent(gdprConsent == GDPR_CONSENT_GIVEN, InneractiveAdManager.GdprConsentSource.External);
+                }
+                sAppliedGdprConsent = gdprConsent;
             }
         }
 
     }
 
     /**
-     * An helper for getting the current consent status from Mopub. Called before each load request
+     * @return the cached consent snapshot, or a newly resolved one if it was invalidated, or if the Mopub settings it was
+     * resolved with have changed since
+     */
+    private static int getGdprConsentSnapshot() {
+        int gdprConsent = sGdprConsentSnapshot;
+        if (gdprConsent == GDPR_CONSENT_UNRESOLVED || sGdprConsentSnapshotInputs != readGdprConsentInputs()) {
+            gdprConsent = resolveGdprConsentSnapshot();
+        }
+        return gdprConsent;
+    }
+
+    /**
+     * Reads the Mopub settings which affect the resolved consent, and which are not covered by the consent status change callback.
+     * Both are plain field reads, so this is cheap enough for every load
+     * @return the settings, as GDPR_INPUT bits
+     */
+    private static int readGdprConsentInputs() {
+        int inputs = MoPub.shouldAllowLegitimateInterest() ? GDPR_INPUT_LEGITIMATE_INTEREST : 0;
+        PersonalInfoManager personalInfoManager = MoPub.getPersonalInformationManager();
+        Boolean gdprApplies = personalInfoManager != null ? personalInfoManager.gdprApplies() : null;
+        if (gdprApplies != null) {
+            inputs |= gdprApplies ? GDPR_INPUT_APPLIES : GDPR_INPUT_NOT_APPLIES;
+        }
+        return inputs;
+    }
+
+    /**
+     * Reads the consent status from Mopub, and caches it until Mopub reports a consent status change, or until the Mopub settings
+     * it depends on change
+     * @return the resolved consent snapshot
+     */
+    private static int resolveGdprConsentSnapshot() {
+        boolean subscribed = subscribeToConsentStatusChanges();
+        int generation = sGdprConsentGeneration.get();
+        int inputs = readGdprConsentInputs();
+
+        Boolean mopubGdpr = extractGdprFromMopub();
+        int gdprConsent = mopubGdpr == null ? GDPR_CONSENT_NONE : (mopubGdpr ? GDPR_CONSENT_GIVEN : GDPR_CONSENT_DENIED);
+
+        // Without a subscription we will not be notified about changes, so keep on polling Mopub
+        if (subscribed) {
+            // The inputs are published first, so that a reader which sees the new snapshot also sees its inputs
+            sGdprConsentSnapshotInputs = inputs;
+            sGdprConsentSnapshot = gdprConsent;
+            // A change notification may have arrived while we were reading the old status
+            if (generation != sGdprConsentGeneration.get()) {
+                sGdprConsentSnapshot = GDPR_CONSENT_UNRESOLVED;
+            }
+        }
+        return gdprConsent;
+    }
+
+    /**
+     * Registers our consent status change listener with Mopub's personal information manager, once it is available
+     * @return true if we are subscribed to consent status changes
+     */
+    private static boolean subscribeToConsentStatusChanges() {
+        if (sConsentListenerSubscribed.get()) {
+            return true;
+        }
+
+        PersonalInfoManager personalInfoManager = MoPub.getPersonalInformationManager();
+        if (personalInfoManager == null) {
+            return false;
+        }
+
+        if (sConsentListenerSubscribed.compareAndSet(false, true)) {
+            personalInfoManager.subscribeConsentStatusChangeListener(new ConsentStatusChangeListener() {
+                @Override
+                public void onConsentStateChange(@NonNull ConsentStatus oldConsentStatus, @NonNull ConsentStatus newConsentStatus,
+                                                 boolean canCollectPersonalInformation) {
+                    if (FyberAdapterLog.isLoggable()) {
+                        log("Mopub consent status changed from " + oldConsentStatus + " to " + newConsentStatus);
+                    }
+                    sGdprConsentGeneration.incrementAndGet();
+                    sGdprConsentSnapshot = GDPR_CONSENT_UNRESOLVED;
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Reads the current consent status from Mopub. Only called when the cached consent snapshot was invalidated
      */
     private static Boolean extractGdprFromMopub() {
         PersonalInfoManager personalInfoManager = MoPub.getPersonalInformationManager();
@@ -192,7 +615,7 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
             Boolean gdprApplies = personalInfoManager.gdprApplies();
             // Only set the GDPR consent flag, if GDPR is applied. If GDPR is not applied, canCollectPersonalInformation returns true, but there is no explicit consent
             if (gdprApplies != null && gdprApplies) {
-                log("Fyber sdk will user gdpr consent from mopub. GdprConsent- " + personalInfoManager.canCollectPersonalInformation());
+                log("Fyber sdk will user gdpr consent from mopub. GdprConsent- ", personalInfoManager.canCollectPersonalInformation());
                 return personalInfoManager.canCollectPersonalInformation();
             } else if (personalInfoManager.getPersonalInfoConsentStatus() == ConsentStatus.UNKNOWN && MoPub.shouldAllowLegitimateInterest()) {
                 log("Gdpr result from mopub is unkown and publisher allowed liegitmateInterset. GdprConsent - true");
@@ -204,6 +627,69 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
         return null;
     }
     
+    /**
+     * The parameters of an SDK initialization
+     */
+    private static final class InitRequest {
+        final Context context;
+        final String appId;
+        final boolean debugMode;
+
+        /** Starts a deferred initialization, unless a load request has already started it */
+        final MessageQueue.IdleHandler idleHandler = new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (sScheduledInit.compareAndSet(InitRequest.this, null)) {
+                    initializeFyberMarketplace(context, appId, debugMode, NO_OP_INIT_LISTENER);
+                }
+                return false;
+            }
+        };
+
+        InitRequest(Context context, String appId, boolean debugMode) {
+            this.context = context;
+            this.appId = appId;
+            this.debugMode = debugMode;
+        }
+    }
+
+    /**
+     * A listener waiting for the pending initialization, and the application id it has requested
+     */
+    private static final class PendingInitListener {
+        final String appId;
+        final OnFyberAdapterConfigurationResolvedListener listener;
+
+        PendingInitListener(String appId, OnFyberAdapterConfigurationResolvedListener listener) {
+            this.appId = appId;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Starts the SDK initialization, and reports the SDK's state
+     */
+    interface SdkInitializer {
+        void initialize(Context context, String appId, OnFyberMarketplaceInitializedListener listener);
+
+        boolean wasInitialized();
+
+        String getAppId();
+    }
+
+    /**
+     * Replaces the SDK initializer, and forgets the initialization state of the previous one. Used by the benchmarks and the load simulation
+     * <br>Must not be called while an initialization is pending. Listeners still waiting for it are dropped
+     * @param sdkInitializer the new initializer, or null in order to restore Fyber's SDK initializer
+     */
+    static void setSdkInitializer(SdkInitializer sdkInitializer) {
+        sSdkInitializer = sdkInitializer != null ? sdkInitializer : SDK_INITIALIZER;
+        sScheduledInit.set(null);
+        sLastInitRequest = null;
+        sPendingInitListeners.clear();
+        sInitState.set(INIT_STATE_IDLE);
+    }
+
     /**
      * Internal interface to bridge the gap between the custom event classes and the initializeNetwork part
      */
@@ -212,75 +698,40 @@ public class FyberAdapterConfiguration extends BaseAdapterConfiguration {
                 OnFyberMarketplaceInitializedListener.FyberInitStatus status);
     }
 
+    /**
+     * Resolves the consent status and the targeting profile ahead of the request, so that the request itself only reads cached values
+     * <br>Called from a background thread. See {@link FyberRequestPreparer}
+     * @param extras the ad unit's extras
+     */
+    static void prepareRequest(Map<String, String> extras) {
+        getGdprConsentSnapshot();
+        if (extras != null) {
+            FyberTargetingProfile.of(extras);
+        }
+    }
+
     /**
      * Helper for popupating an ad request with extra params
+     * <br>The extras are parsed once per distinct targeting content. See {@link FyberTargetingProfile}
      * @param request
      * @param extras
      */
     public static void updateRequestFromExtras(InneractiveAdRequest request, Map<String, String> extras) {
-        String keywords = null;
-        InneractiveUserConfig.Gender gender = null;
-        int age = 0;
-        String zipCode = null;
         if (extras != null) {
-            if (extras.containsKey(FyberMopubMediationDefs.KEY_KEYWORDS)) {
-                keywords = (String) extras.get(FyberMopubMediationDefs.KEY_KEYWORDS);
-            }
-
-            // Set the age variable as defined on IaMediationActivity class.
-            // in case the variable is not initialized, the variable will not be in use
-
-            if (extras.containsKey(FyberMopubMediationDefs.KEY_AGE)) {
-                try {
-                    age = Integer.valueOf(extras.get(FyberMopubMediationDefs.KEY_AGE));
-                } catch (NumberFormatException e) {
-                    log("local extra contains Invalid Age");
-                }
-            }
-
-            //in case the variable is not initialized, the variable will not be in use
-            if (extras.containsKey(FyberMopubMediationDefs.KEY_ZIPCODE)) {
-                zipCode = (String) extras.get(FyberMopubMediationDefs.KEY_ZIPCODE);
-            }
-
-            // Set the gender variable as defined on IaMediationActivity class.
-            // in case the variable is not initialized, the variable will not be in use
-
-            if (extras.containsKey(FyberMopubMediationDefs.KEY_GENDER)) {
-                String genderStr = extras.get(FyberMopubMediationDefs.KEY_GENDER)    ;
-                if (FyberMopubMediationDefs.GENDER_MALE.equals(genderStr)) {
-                    gender = InneractiveUserConfig.Gender.MALE;
-                } else if (FyberMopubMediationDefs.GENDER_FEMALE.equals(genderStr)) {
-                    gender = InneractiveUserConfig.Gender.FEMALE;
-                }
-            }
-
-            // Populate user configuration
-            InneractiveUserConfig userConfig = new InneractiveUserConfig()
-                    .setZipCode(zipCode);
-
-            if (gender != null) {
-                userConfig.setGender(gender);
-            }
-
-            if (InneractiveUserConfig.ageIsValid(age)) {
-                userConfig.setAge(age);
-            }
-
-            // Set optional parameters for better targeting.
-            request.setUserParams(new InneractiveUserConfig()
-                    .setGender(gender)
-                    .setZipCode(zipCode)
-                    .setAge(age));
-
-            // Populate keywords
-            if (!TextUtils.isEmpty(keywords)) {
-                request.setKeywords(keywords);
-            }
+            FyberTargetingProfile.of(extras).applyTo(request);
         }
     }
 
     private static void log(String message) {
-        MoPubLog.log(CUSTOM, TAG, message);
+        FyberAdapterLog.log(TAG, message);
+    }
+
+    /**
+     * MopubLog helper, which concatenates the value only if logging is enabled
+     * @param message
+     * @param value
+     */
+    private static void log(String message, Object value) {
+        FyberAdapterLog.log(TAG, message, value);
     }
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.mopub.common.logging.MoPubLog;
+
+import java.io.PrintWriter;
+
+import static com.mopub.common.logging.MoPubLog.AdapterLogEvent.CUSTOM;
+
+/**
+ * Logging of the custom adapter classes
+ * <br>Messages are only built and sent to MoPubLog while Mopub's log level is DEBUG. Call sites which concatenate a message
+ * on a hot path should check {@link #isLoggable()} first, or use {@link #log(String, String, Object)},
+ * which concatenates only when logging is enabled.
+ * <br>In addition, adapter events can be recorded into a fixed size trace buffer, without building any strings.
+ * The trace is disabled by default. Use {@link #setTraceEnabled(boolean)} and {@link #dumpTrace(PrintWriter)}
+ */
+public final class FyberAdapterLog {
+
+    /**
+     * Structured adapter events, recorded into the trace buffer
+     */
+    public enum Event {
+        LOAD_REQUESTED,
+        LOADED,
+        LOAD_FAILED,
+        LOADED_FROM_CACHE,
+        SKIPPED_BACKOFF,
+        SKIPPED_CIRCUIT_OPEN,
+        DEADLINE_REACHED,
+        HEDGE_SENT,
+        SHOW,
+        IMPRESSION,
+        CLICK,
+        DISMISSED,
+        ERROR_STATE,
+        VIDEO_COMPLETED,
+        VIDEO_ERROR,
+        /** A banner has recovered from a renderer crash. The argument is 0 if a standby spot was bound, or 1 if the banner was reloaded */
+        RENDERER_RECOVERED,
+        INVALIDATED
+    }
+
+    /** Number of events kept in the trace buffer. Must be a power of two */
+    private final static int TRACE_CAPACITY = 256;
+    private final static int TRACE_MASK = TRACE_CAPACITY - 1;
+
+    private static volatile boolean sTraceEnabled;
+
+    // The trace buffer, stored as parallel arrays so that recording does not allocate
+    private final static long[] sTraceTimes = new long[TRACE_CAPACITY];
+    private final static Event[] sTraceEvents = new Event[TRACE_CAPACITY];
+    private final static FyberAdFormat[] sTraceFormats = new FyberAdFormat[TRACE_CAPACITY];
+    private final static String[] sTraceSpotIds = new String[TRACE_CAPACITY];
+    private final static int[] sTraceArgs = new int[TRACE_CAPACITY];
+    /** Total number of recorded events. The next event is written at sTraceCount & TRACE_MASK */
+    private static long sTraceCount;
+
+    private FyberAdapterLog() {
+    }
+
+    /**
+     * @return true if adapter messages are currently logged by MoPubLog
+     */
+    static boolean isLoggable() {
+        return MoPubLog.getLogLevel() == MoPubLog.LogLevel.DEBUG;
+    }
+
+    /**
+     * Logs a message, if logging is enabled
+     * @param tag the log tag of the calling class
+     * @param message the message
+     */
+    static void log(String tag, String message) {
+        if (isLoggable()) {
+            MoPubLog.log(CUSTOM, tag, message);
+        }
+    }
+
+    /**
+     * Logs a message followed by a value. The two are concatenated only if logging is enabled
+     */
+    static void log(String tag, String message, Object value) {
+        if (isLoggable()) {
+            MoPubLog.log(CUSTOM, tag, message + value);
+        }
+    }
+
+    /**
+     * Enables or disables the recording of adapter events into the trace buffer
+     * @param enabled true in order to record events
+     */
+    public static void setTraceEnabled(boolean enabled) {
+        sTraceEnabled = enabled;
+    }
+
+    /**
+     * Records an adapter event into the trace buffer, if the trace is enabled. Does not allocate
+     * @param event the event
+     * @param format the ad format
+     * @param spotId Fyber's spot id, or null if not known
+     * @param arg an event specific value, such as an error code ordinal, or -1
+     */
+    static void trace(@NonNull Event event, @NonNull FyberAdFormat format, String spotId, int arg) {
+        if (!sTraceEnabled) {
+            return;
+        }
+
+        long time = SystemClock.elapsedRealtime();
+        synchronized (sTraceEvents) {
+            int index = (int) (sTraceCount++ & TRACE_MASK);
+            sTraceTimes[index] = time;
+            sTraceEvents[index] = event;
+            sTraceFormats[index] = format;
+            sTraceSpotIds[index] = spotId;
+            sTraceArgs[index] = arg;
+        }
+    }
+
+    /**
+     * Writes the recorded events, oldest first
+     * @param writer the report's destination
+     */
+    public static void dumpTrace(@NonNull PrintWriter writer) {
+        writer.println("Fyber adapter trace (enabled=" + sTraceEnabled + "):");
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sTraceEvents) {
+            long first = Math.max(0, sTraceCount - TRACE_CAPACITY);
+            for (long i = first; i < sTraceCount; i++) {
+                int index = (int) (i & TRACE_MASK);
+                writer.println("  -" + (now - sTraceTimes[index]) + "ms " + sTraceEvents[index] + " format=" + sTraceFormats[index] +
+                                       " spot=" + sTraceSpotIds[index] + (sTraceArgs[index] >= 0 ? " arg=" + sTraceArgs[index] : ""));
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Clears the trace buffer
+     */
+    public static void clearTrace() {
+        synchronized (sTraceEvents) {
+            sTraceCount = 0;
+            for (int i = 0; i < TRACE_CAPACITY; i++) {
+                sTraceEvents[i] = null;
+                sTraceFormats[i] = null;
+                sTraceSpotIds[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency instrumentation of the custom adapter classes
+ * <br>The duration of each stage of the ad life cycle is recorded per spot id and ad format, into lock-free histograms.
+ * Use {@link #getSnapshots()} in order to read the current percentiles, or {@link #dump(PrintWriter)} for a text report
+ * <br>The sampled video playback events of fullscreen ads can be received with {@link #setVideoEventListener}
+ */
+public final class FyberAdapterMetrics {
+
+    /**
+     * The measured stages of the ad life cycle
+     */
+    public enum Stage {
+        /** Waiting for the Fyber Marketplace SDK initialization, as part of a load request */
+        INIT_WAIT,
+        /** From the ad request, until the ad has loaded or failed loading */
+        REQUEST,
+        /** From the time the ad has loaded, until Mopub asked to show it */
+        LOAD_TO_SHOW,
+        /** From the show request, until the video ad has started playing */
+        VIDEO_STARTUP,
+        /** A period in which the playing video's position did not advance */
+        VIDEO_STALL,
+        /** From the show request, until the ad has reported an impression */
+        SHOW_TO_IMPRESSION,
+        /** From the request of a load's primary spot id, until that request has completed. Backup requests and other raced spot ids are excluded */
+        PRIMARY_REQUEST
+    }
+
+    /**
+     * Sampled video playback events of fullscreen ads, in the order of their delivery
+     */
+    public enum VideoEvent {
+        START,
+        FIRST_QUARTILE,
+        MIDPOINT,
+        THIRD_QUARTILE,
+        COMPLETE
+    }
+
+    /**
+     * Receives the sampled video playback events of fullscreen ads. Called on the main thread, once per event
+     */
+    public interface VideoEventListener {
+        /**
+         * @param spotId Fyber's spot id of the playing ad
+         * @param format the ad format
+         * @param event the playback event
+         */
+        void onVideoEvent(@NonNull String spotId, @NonNull FyberAdFormat format, @NonNull VideoEvent event);
+    }
+
+    private final static int FORMAT_COUNT = FyberAdFormat.values().length;
+    private final static int STAGE_COUNT = Stage.values().length;
+
+    /** Histograms per spot id, indexed by format and stage */
+    private final static ConcurrentHashMap<String, Histogram[]> sHistograms = new ConcurrentHashMap<>();
+
+    /** Video event listeners per spot id */
+    private final static ConcurrentHashMap<String, VideoEventListener> sVideoEventListeners = new ConcurrentHashMap<>();
+    /** Receives the video events of the spots which have no listener of their own */
+    private static volatile VideoEventListener sDefaultVideoEventListener;
+
+    private FyberAdapterMetrics() {
+    }
+
+    /**
+     * @return a timestamp for measuring a stage, to be passed later on to {@link #recordSince}
+     */
+    static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records the duration of a stage which has started at the given time
+     * @param spotId Fyber's spot id
+     * @param format the ad format
+     * @param stage the measured stage
+     * @param startTime the stage's start time, as returned by {@link #now()}. Ignored if 0
+     */
+    static void recordSince(String spotId, @NonNull FyberAdFormat format, @NonNull Stage stage, long startTime) {
+        if (startTime > 0 && spotId != null) {
+            record(spotId, format, stage, now() - startTime);
+        }
+    }
+
+    /**
+     * Records the duration of a stage
+     * @param spotId Fyber's spot id
+     * @param format the ad format
+     * @param stage the measured stage
+     * @param durationMillis the stage's duration in milliseconds
+     */
+    static void record(@NonNull String spotId, @NonNull FyberAdFormat format, @NonNull Stage stage, long durationMillis) {
+        Histogram[] histograms = sHistograms.get(spotId);
+        if (histograms == null) {
+            histograms = new Histogram[FORMAT_COUNT * STAGE_COUNT];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+            Histogram[] existing = sHistograms.putIfAbsent(spotId, histograms);
+            if (existing != null) {
+                histograms = existing;
+            }
+        }
+        histograms[format.ordinal() * STAGE_COUNT + stage.ordinal()].record(durationMillis);
+    }
+
+    /**
+     * Returns a percentile of a stage's recorded values
+     * @param spotId Fyber's spot id
+     * @param format the ad format
+     * @param stage the measured stage
+     * @param fraction the requested percentile, between 0 and 1
+     * @param minCount the minimal number of recorded values for a meaningful result
+     * @return the percentile in milliseconds, or -1 if fewer than minCount values were recorded
+     */
+    static long getPercentile(@NonNull String spotId, @NonNull FyberAdFormat format, @NonNull Stage stage, double fraction, long minCount) {
+        Histogram[] histograms = sHistograms.get(spotId);
+        if (histograms == null) {
+            return -1;
+        }
+
+        Histogram histogram = histograms[format.ordinal() * STAGE_COUNT + stage.ordinal()];
+        long count = histogram.mCount.get();
+        return count < minCount || count == 0 ? -1 : histogram.percentile(fraction);
+    }
+
+    /**
+     * Subscribes to the sampled video playback events of a spot
+     * @param spotId Fyber's spot id
+     * @param listener the listener, or null in order to unsubscribe
+     */
+    public static void setVideoEventListener(@NonNull String spotId, @Nullable VideoEventListener listener) {
+        if (listener == null) {
+            sVideoEventListeners.remove(spotId);
+        } else {
+            sVideoEventListeners.put(spotId, listener);
+        }
+    }
+
+    /**
+     * Subscribes to the sampled video playback events of all spots which have no listener of their own
+     * @param listener the listener, or null in order to unsubscribe
+     */
+    public static void setVideoEventListener(@Nullable VideoEventListener listener) {
+        sDefaultVideoEventListener = listener;
+    }
+
+    /**
+     * Delivers a sampled video playback event to the spot's listener, or to the default one. Does not allocate
+     * @param spotId Fyber's spot id of the playing ad
+     * @param format the ad format
+     * @param event the playback event
+     */
+    static void dispatchVideoEvent(String spotId, @NonNull FyberAdFormat format, @NonNull VideoEvent event) {
+        if (spotId == null) {
+            return;
+        }
+
+        VideoEventListener listener = sVideoEventListeners.get(spotId);
+        if (listener == null) {
+            listener = sDefaultVideoEventListener;
+        }
+        if (listener != null) {
+            listener.onVideoEvent(spotId, format, event);
+        }
+    }
+
+    /**
+     * @return the current statistics of all stages which have recorded values
+     */
+    @NonNull
+    public static List<Snapshot> getSnapshots() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, Histogram[]> entry : sHistograms.entrySet()) {
+            Histogram[] histograms = entry.getValue();
+            for (FyberAdFormat format : FyberAdFormat.values()) {
+                for (Stage stage : Stage.values()) {
+                    Histogram histogram = histograms[format.ordinal() * STAGE_COUNT + stage.ordinal()];
+                    if (histogram.mCount.get() > 0) {
+                        snapshots.add(histogram.snapshot(entry.getKey(), format, stage));
+                    }
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Writes a text report of all recorded stages, followed by the SDK initialization timing, the no fill backoff state of the spots
+     * the circuit breaker state and the retained activities, in a dumpsys like format
+     * @param writer the report's destination
+     */
+    public static void dump(@NonNull PrintWriter writer) {
+        writer.println("Fyber adapter latency (ms):");
+        for (Snapshot snapshot : getSnapshots()) {
+            writer.print("  ");
+            writer.println(snapshot);
+        }
+        FyberAdapterConfiguration.dumpInitTiming(writer);
+        FyberNoFillBackoff.dump(writer);
+        FyberCircuitBreaker.dump(writer);
+        FyberErrorStats.dump(writer);
+        FyberActivityTracker.dumpRetainedActivities(writer);
+        writer.flush();
+    }
+
+    /**
+     * Clears all recorded values
+     */
+    public static void reset() {
+        sHistograms.clear();
+    }
+
+    /**
+     * Statistics of a single stage, for a single spot id and ad format
+     */
+    public static final class Snapshot {
+        public final String spotId;
+        public final FyberAdFormat format;
+        public final Stage stage;
+        public final long count;
+        public final long mean;
+        public final long p50;
+        public final long p95;
+        public final long p99;
+        public final long max;
+
+        Snapshot(String spotId, FyberAdFormat format, Stage stage, long count, long mean, long p50, long p95, long p99, long max) {
+            this.spotId = spotId;
+            this.format = format;
+            this.stage = stage;
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "spot=" + spotId + " format=" + format + " stage=" + stage + " count=" + count + " mean=" + mean +
+                    " p50=" + p50 + " p95=" + p95 + " p99=" + p99 + " max=" + max;
+        }
+    }
+
+    /**
+     * Lock-free log-linear histogram of millisecond values. Every power of two range is split into 8 buckets,
+     * which bounds the error of the reported percentiles to 1/8 of the value
+     */
+    static final class Histogram {
+        private final static int SUB_BUCKET_BITS = 3;
+        private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        /** Values are clamped to about 4.6 hours */
+        private final static int MAX_EXPONENT = 23;
+        private final static int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+        private final static long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            } else if (value > MAX_VALUE) {
+                value = MAX_VALUE;
+            }
+
+            mBuckets.incrementAndGet(indexOf(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+
+            long max;
+            while (value > (max = mMax.get())) {
+                if (mMax.compareAndSet(max, value)) {
+                    break;
+                }
+            }
+        }
+
+        Snapshot snapshot(String spotId, FyberAdFormat format, Stage stage) {
+            long[] buckets = new long[BUCKET_COUNT];
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+
+            long mean = count == 0 ? 0 : mSum.get() / count;
+            return new Snapshot(spotId, format, stage, count, mean,
+                                percentile(buckets, count, 0.50), percentile(buckets, count, 0.95),
+                                percentile(buckets, count, 0.99), mMax.get());
+        }
+
+        /**
+         * Computes a percentile directly from the live buckets, without taking a snapshot
+         */
+        long percentile(double fraction) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        private long percentile(long[] buckets, long count, double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long highestValueOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int subBucket = index % SUB_BUCKETS;
+            long lowest = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+            return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
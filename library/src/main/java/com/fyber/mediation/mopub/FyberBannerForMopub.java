@@ -17,7 +17,6 @@ package com.fyber.mediation.mopub;
 
 import android.app.Activity;
 import android.content.Context;
-import android.text.TextUtils;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
@@ -29,15 +28,11 @@ import com.fyber.inneractive.sdk.external.*;
 import com.fyber.inneractive.sdk.external.InneractiveUnitController.AdDisplayError;
 import com.mopub.common.LifecycleListener;
 import com.mopub.common.Preconditions;
-import com.mopub.common.logging.MoPubLog;
-import com.mopub.common.MoPub;
 import com.mopub.mobileads.AdData;
 import com.mopub.mobileads.BaseAd;
 import com.mopub.mobileads.MoPubErrorCode;
 import java.util.Map;
 
-import static com.mopub.common.logging.MoPubLog.AdapterLogEvent.CUSTOM;
-
 /**
  * Implements Fyber's banner Mopub's custom event class
  */
@@ -45,6 +40,11 @@ public class FyberBannerForMopub extends BaseAd {
   // Mopub log tag definition
   private final static String LOG_TAG = "FyberBannerForMopub";
 
+  /**
+   * Number of times a banner is recovered after its WebView renderer was killed, before the failure is reported to Mopub
+   */
+  private final static int MAX_RENDERER_RECOVERIES = 2;
+
   String mSpotId;
 
   /**
@@ -57,123 +57,306 @@ public class FyberBannerForMopub extends BaseAd {
    */
   ViewGroup mAdLayout;
 
+  /**
+   * The unit controller which is currently bound to mAdLayout
+   */
+  InneractiveUnitController mBoundController;
+
+  /**
+   * True if a standby banner should be loaded while the current banner is on screen
+   */
+  boolean mDoubleBuffered;
+
+  /**
+   * The local extras of the current request, used for loading the standby banner
+   */
+  Map<String, String> mLocalExtras;
+
+  /**
+   * The ad unit's configuration of the current request, used for reloading the banner after a renderer crash
+   */
+  FyberSpotConfig mConfig;
+
+  /**
+   * Number of renderer crashes this banner has recovered from
+   */
+  int mRendererRecoveries;
+
+  /**
+   * True once an impression was reported to Mopub for the current load. A banner which replaces a crashed one does not report it again
+   */
+  boolean mImpressionReported;
+
+  /**
+   * Life cycle timestamps, used for latency metrics
+   */
+  long mRequestTime;
+  long mLoadedTime;
+  long mShowTime;
+
+  /**
+   * The load which is currently in progress
+   */
+  FyberHedgedRequest mHedgedRequest;
+
+  /**
+   * Set once Mopub has invalidated this ad. Requests which are still being prepared are then dropped
+   */
+  boolean mInvalidated;
+
+  /**
+   * Prepares the request in the background, and then requests the banner from the main thread
+   */
+  private void prepareAndRequestBanner(final Context context, final FyberSpotConfig config, final Map<String, String> extras) {
+    FyberRequestPreparer.prepare(extras, new Runnable() {
+      @Override
+      public void run() {
+        if (!mInvalidated) {
+          requestBanner(context, config, extras);
+        }
+      }
+    });
+  }
+
   /**
    * Called by the Mopub infra-structure when Mopub requests a banner from Fyber Marketplace
    *
    * @param context
-   * @param spotId
+   * @param config the ad unit's configuration
    * @param localExtras
    */
 
 
-  private void requestBanner(final Context context, String spotId, Map<String, String> localExtras) {
+  private void requestBanner(final Context context, FyberSpotConfig config, Map<String, String> localExtras) {
     FyberAdapterConfiguration.updateGdprConsentStatusFromMopub();
 
+    final String spotId = config.spotId;
     mSpotId = spotId;
+    mLocalExtras = localExtras;
+    mConfig = config;
   
     // Destroy previous ad
+    cancelHedgedRequest();
     if (mBannerSpot != null) {
-      mBannerSpot.destroy();
+      FyberSpotPool.get().release(mBannerSpot);
+    }
+    mBoundController = null;
+    mImpressionReported = false;
+
+    // Swap in the standby banner, if it has finished loading while the previous banner was on screen
+    InneractiveAdSpot standbySpot = mDoubleBuffered ? FyberAdInventoryCache.get().poll(config.spotIds) : null;
+    if (standbySpot != null) {
+      log("on ad loaded from standby spot");
+      FyberAdapterLog.trace(FyberAdapterLog.Event.LOADED_FROM_CACHE, FyberAdFormat.BANNER, mSpotId, -1);
+      mBannerSpot = standbySpot;
+      onBannerSpotLoaded(context);
+      return;
     }
   
-    mBannerSpot = InneractiveAdSpotManager.get().createSpot();
-    // Set your mediation name and version
-    mBannerSpot.setMediationName(InneractiveMediationName.MOPUB);
-    mBannerSpot.setMediationVersion(MoPub.SDK_VERSION);
-  
-    InneractiveAdViewUnitController controller = new InneractiveAdViewUnitController();
-    mBannerSpot.addUnitController(controller);
-  
-    InneractiveAdRequest request = new InneractiveAdRequest(spotId);
-    FyberAdapterConfiguration.updateRequestFromExtras(request, localExtras);
-  
+    mBannerSpot = null;
+
     // Load an Ad
-    mBannerSpot.setRequestListener(new InneractiveAdSpot.RequestListener() {
+    mRequestTime = FyberAdapterMetrics.now();
+    mHedgedRequest = FyberHedgedRequest.startFor(FyberAdFormat.BANNER, spotId, localExtras, config, new FyberHedgedRequest.Listener() {
       @Override
-      public void onInneractiveSuccessfulAdRequest(InneractiveAdSpot adSpot) {
-        if (adSpot != mBannerSpot) {
-          log("Wrong Banner Spot: Received - " + adSpot + ", Actual - " + mBannerSpot);
-          return;
-        }
-      
-        log("on ad loaded successfully");
-      
-        // Create a parent layout for the Banner Ad
-        mAdLayout = new FrameLayout(context);
-        InneractiveAdViewUnitController controller = (InneractiveAdViewUnitController) mBannerSpot
-                .getSelectedUnitController();
-        controller.setEventsListener(new InneractiveAdViewEventsListener() {
-          @Override
-          public void onAdImpression(InneractiveAdSpot adSpot) {
-            mInteractionListener.onAdImpression();
-            log("onAdImpression");
-          }
-        
-          @Override
-          public void onAdClicked(InneractiveAdSpot adSpot) {
-            log("onAdClicked");
-            mInteractionListener.onAdClicked();
-          }
-        
-          @Override
-          public void onAdWillCloseInternalBrowser(InneractiveAdSpot adSpot) {
-            log("onAdWillCloseInternalBrowser");
-          }
-        
-          @Override
-          public void onAdWillOpenExternalApp(InneractiveAdSpot adSpot) {
-            log("onAdWillOpenExternalApp");
-            // customEventListener.onLeaveApplication();
-            // Don't call the onLeaveApplication() API since it causes a false Click event on MoPub
-          }
-        
-          @Override
-          public void onAdEnteredErrorState(InneractiveAdSpot adSpot, AdDisplayError error) {
-            log("onAdEnteredErrorState - " + error.getMessage());
-            if (error instanceof WebViewRendererProcessHasGoneError) {
-              mInteractionListener.onAdFailed(MoPubErrorCode.RENDER_PROCESS_GONE_UNSPECIFIED);
-            }
-          }
-        
-          @Override
-          public void onAdExpanded(InneractiveAdSpot adSpot) {
-            log("onAdExpanded");
-            mInteractionListener.onAdExpanded();
-          }
-        
-          @Override
-          public void onAdResized(InneractiveAdSpot adSpot) {
-            log("onAdResized");
-          }
-        
-          @Override
-          public void onAdCollapsed(InneractiveAdSpot adSpot) {
-            log("onAdCollapsed");
-            mInteractionListener.onAdCollapsed();
-          }
-        });
-
-        controller.bindView(mAdLayout);
-        mLoadListener.onAdLoaded();
+      public void onSpotLoaded(@NonNull InneractiveAdSpot spot, @NonNull String loadedSpotId) {
+        log("on ad loaded successfully from spot ", loadedSpotId);
+        FyberAdapterLog.trace(FyberAdapterLog.Event.LOADED, FyberAdFormat.BANNER, loadedSpotId, -1);
+        mHedgedRequest = null;
+        mBannerSpot = spot;
+        FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.BANNER, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+        onBannerSpotLoaded(context);
+      }
+
+      @Override
+      public void onSpotFailed(@NonNull InneractiveErrorCode errorCode) {
+        log("on ad failed loading with Error: ", errorCode);
+        FyberAdapterLog.trace(FyberAdapterLog.Event.LOAD_FAILED, FyberAdFormat.BANNER, mSpotId, errorCode.ordinal());
+        mHedgedRequest = null;
+        FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.BANNER, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+        mLoadListener.onAdLoadFailed(FyberErrorStats.toMoPubErrorCode(errorCode));
+      }
+
+      @Override
+      public void onDeadlineReached() {
+        log("banner load deadline reached");
+        FyberAdapterLog.trace(FyberAdapterLog.Event.DEADLINE_REACHED, FyberAdFormat.BANNER, mSpotId, -1);
+        mHedgedRequest = null;
+        FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.BANNER, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+        mLoadListener.onAdLoadFailed(MoPubErrorCode.NETWORK_TIMEOUT);
       }
-    
+
+      @Override
+      public void onLoadSkipped(@NonNull MoPubErrorCode errorCode) {
+        mLoadListener.onAdLoadFailed(errorCode);
+      }
+    });
+  }
+
+  /**
+   * Stops a load which is still in progress
+   */
+  private void cancelHedgedRequest() {
+    if (mHedgedRequest != null) {
+      mHedgedRequest.cancel();
+      mHedgedRequest = null;
+    }
+  }
+
+  /**
+   * Binds the loaded banner spot into the parent ad layout, and notifies Mopub that the banner is ready
+   * @param context
+   */
+  private void onBannerSpotLoaded(Context context) {
+    // Create a parent layout for the Banner Ad
+    mAdLayout = new FrameLayout(context);
+    bindBannerSpot();
+    mLoadedTime = FyberAdapterMetrics.now();
+    mLoadListener.onAdLoaded();
+  }
+
+  /**
+   * Sets the events listener of the current banner spot, and binds it into the parent ad layout
+   */
+  private void bindBannerSpot() {
+    InneractiveAdViewUnitController controller = (InneractiveAdViewUnitController) mBannerSpot
+            .getSelectedUnitController();
+    controller.setEventsListener(new InneractiveAdViewEventsListener() {
       @Override
-      public void onInneractiveFailedAdRequest(InneractiveAdSpot adSpot,
-                                               InneractiveErrorCode errorCode) {
-        log("on ad failed loading with Error: " + errorCode);
-        if (errorCode == InneractiveErrorCode.CONNECTION_ERROR) {
-          mLoadListener.onAdLoadFailed(MoPubErrorCode.NO_CONNECTION);
-        } else if (errorCode == InneractiveErrorCode.CONNECTION_TIMEOUT) {
-          mLoadListener.onAdLoadFailed(MoPubErrorCode.NETWORK_TIMEOUT);
-        } else if (errorCode == InneractiveErrorCode.NO_FILL) {
-          mLoadListener.onAdLoadFailed(MoPubErrorCode.NO_FILL);
+      public void onAdImpression(InneractiveAdSpot adSpot) {
+        if (mImpressionReported) {
+          log("onAdImpression of a banner which replaced a crashed one. Not reported again");
         } else {
-          mLoadListener.onAdLoadFailed(MoPubErrorCode.SERVER_ERROR);
+          mImpressionReported = true;
+          mInteractionListener.onAdImpression();
+          log("onAdImpression");
+          FyberAdapterLog.trace(FyberAdapterLog.Event.IMPRESSION, FyberAdFormat.BANNER, mSpotId, -1);
+          FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.BANNER, FyberAdapterMetrics.Stage.SHOW_TO_IMPRESSION, mShowTime);
         }
+
+        // Load the next banner while this one is on screen
+        if (mDoubleBuffered) {
+          FyberAdInventoryCache.get().refill(FyberAdFormat.BANNER, mSpotId, mLocalExtras);
+        }
+      }
+
+      @Override
+      public void onAdClicked(InneractiveAdSpot adSpot) {
+        log("onAdClicked");
+        FyberAdapterLog.trace(FyberAdapterLog.Event.CLICK, FyberAdFormat.BANNER, mSpotId, -1);
+        mInteractionListener.onAdClicked();
+      }
+
+      @Override
+      public void onAdWillCloseInternalBrowser(InneractiveAdSpot adSpot) {
+        log("onAdWillCloseInternalBrowser");
+      }
+
+      @Override
+      public void onAdWillOpenExternalApp(InneractiveAdSpot adSpot) {
+        log("onAdWillOpenExternalApp");
+        // customEventListener.onLeaveApplication();
+        // Don't call the onLeaveApplication() API since it causes a false Click event on MoPub
+      }
+
+      @Override
+      public void onAdEnteredErrorState(InneractiveAdSpot adSpot, AdDisplayError error) {
+        log("onAdEnteredErrorState - ", error.getMessage());
+        FyberAdapterLog.trace(FyberAdapterLog.Event.ERROR_STATE, FyberAdFormat.BANNER, mSpotId, -1);
+        if (error instanceof WebViewRendererProcessHasGoneError) {
+          recoverFromRendererCrash();
+        }
+      }
+
+      @Override
+      public void onAdExpanded(InneractiveAdSpot adSpot) {
+        log("onAdExpanded");
+        mInteractionListener.onAdExpanded();
+      }
+
+      @Override
+      public void onAdResized(InneractiveAdSpot adSpot) {
+        log("onAdResized");
+      }
+
+      @Override
+      public void onAdCollapsed(InneractiveAdSpot adSpot) {
+        log("onAdCollapsed");
+        mInteractionListener.onAdCollapsed();
       }
     });
-  
-    mBannerSpot.requestAd(request);
+
+    controller.bindView(mAdLayout);
+    mBoundController = controller;
+  }
+
+  /**
+   * Replaces a banner whose WebView renderer was killed, without going back to Mopub. A standby banner is bound into the existing
+   * parent ad layout if one is ready, otherwise the banner is reloaded right away. The failure is only reported to Mopub if
+   * the recovery is not possible
+   */
+  private void recoverFromRendererCrash() {
+    // The crashed banner cannot be rendered again
+    cancelHedgedRequest();
+    if (mBannerSpot != null) {
+      FyberSpotPool.get().release(mBannerSpot);
+      mBannerSpot = null;
+    }
+    mBoundController = null;
+
+    if (mInvalidated || mAdLayout == null || mConfig == null || mRendererRecoveries >= MAX_RENDERER_RECOVERIES) {
+      mInteractionListener.onAdFailed(MoPubErrorCode.RENDER_PROCESS_GONE_UNSPECIFIED);
+      return;
+    }
+    mRendererRecoveries++;
+    mAdLayout.removeAllViews();
+
+    InneractiveAdSpot standbySpot = FyberAdInventoryCache.get().poll(mConfig.spotIds);
+    if (standbySpot != null) {
+      log("renderer process has gone. Recovering with standby spot");
+      FyberAdapterLog.trace(FyberAdapterLog.Event.RENDERER_RECOVERED, FyberAdFormat.BANNER, mSpotId, 0);
+      mBannerSpot = standbySpot;
+      bindBannerSpot();
+      return;
+    }
+
+    // A reload is a background request, so it never acts as the circuit breaker's probe
+    if (!FyberCircuitBreaker.isClosed()) {
+      mInteractionListener.onAdFailed(MoPubErrorCode.RENDER_PROCESS_GONE_UNSPECIFIED);
+      return;
+    }
+
+    log("renderer process has gone. Reloading banner");
+    FyberAdapterLog.trace(FyberAdapterLog.Event.RENDERER_RECOVERED, FyberAdFormat.BANNER, mSpotId, 1);
+    mHedgedRequest = new FyberHedgedRequest(FyberAdFormat.BANNER, mSpotId, mLocalExtras, mConfig, new FyberHedgedRequest.Listener() {
+      @Override
+      public void onSpotLoaded(@NonNull InneractiveAdSpot spot, @NonNull String loadedSpotId) {
+        log("on ad reloaded successfully from spot ", loadedSpotId);
+        mHedgedRequest = null;
+        mBannerSpot = spot;
+        bindBannerSpot();
+      }
+
+      @Override
+      public void onSpotFailed(@NonNull InneractiveErrorCode errorCode) {
+        log("reload after renderer crash failed with Error: ", errorCode);
+        mHedgedRequest = null;
+        mInteractionListener.onAdFailed(MoPubErrorCode.RENDER_PROCESS_GONE_UNSPECIFIED);
+      }
+
+      @Override
+      public void onDeadlineReached() {
+        log("reload after renderer crash reached its deadline");
+        mHedgedRequest = null;
+        mInteractionListener.onAdFailed(MoPubErrorCode.RENDER_PROCESS_GONE_UNSPECIFIED);
+      }
+
+      @Override
+      public void onLoadSkipped(@NonNull MoPubErrorCode errorCode) {
+        // Not called, as the reload is started without the fail fast checks
+      }
+    });
+    mHedgedRequest.start();
   }
 
   /**
@@ -181,11 +364,15 @@ public class FyberBannerForMopub extends BaseAd {
    */
   @Override
   protected void onInvalidate() {
+    mInvalidated = true;
     log("onInvalidate called by Mopub");
+    FyberAdapterLog.trace(FyberAdapterLog.Event.INVALIDATED, FyberAdFormat.BANNER, mSpotId, -1);
+    cancelHedgedRequest();
     if (mBannerSpot != null) {
-      mBannerSpot.destroy();
+      FyberSpotPool.get().release(mBannerSpot);
       mBannerSpot = null;
     }
+    mBoundController = null;
   }
 
   @Nullable
@@ -211,52 +398,84 @@ public class FyberBannerForMopub extends BaseAd {
     Preconditions.checkNotNull(adData);
 
     log("load banner requested");
+    FyberAdapterLog.trace(FyberAdapterLog.Event.LOAD_REQUESTED, FyberAdFormat.BANNER, null, -1);
 
     setAutomaticImpressionAndClickTracking(false);
 
     final Map<String, String> extras = adData.getExtras();
     // Set variables from MoPub console.
-    final String appId = extras == null ? null : extras.get(FyberMopubMediationDefs.REMOTE_KEY_APP_ID);
-    final String spotId = extras == null ? null : extras.get(FyberMopubMediationDefs.REMOTE_KEY_SPOT_ID);
+    final FyberSpotConfig config = FyberSpotConfig.from(adData);
+    final String spotId = config.spotId;
 
-    if (TextUtils.isEmpty(spotId)) {
+    if (!config.hasSpotId()) {
       log("No spotID defined for ad unit. Cannot load banner");
       mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
       return;
     }
 
+    mDoubleBuffered = config.doubleBuffer;
+    if (mDoubleBuffered) {
+      FyberAdInventoryCache.get().setDepth(spotId, 1);
+    }
+
     // If we've received an appId for this unit, try initializing the Fyber Marketplace SDK, if it was not already initialized
-    if (!TextUtils.isEmpty(appId)) {
-      FyberAdapterConfiguration.initializeFyberMarketplace(context, appId, extras.containsKey(
-              FyberMopubMediationDefs.REMOTE_KEY_DEBUG),
-              new FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener() {
-                @Override public void onFyberAdapterConfigurationResolved(
-                        OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
-                  //note - we try to load ads when "FAILED" because an ad request will re-attempt to initialize the relevant parts of the SDK.
-                  if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY || status == OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED) {
-                    requestBanner(context, spotId, extras);
-                  } else {
-                    mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
-                  }
-                }
-              });
+    if (config.hasAppId()) {
+      FyberAdapterConfiguration.initializeFyberMarketplace(context, config.appId, config.debug,
+              createInitListener(context, config, extras));
     } else if (InneractiveAdManager.wasInitialized()) {
-      requestBanner(context, spotId, extras);
-    } else {
+      prepareAndRequestBanner(context, config, extras);
+    } else if (!FyberAdapterConfiguration.initializePendingIfNeeded(createInitListener(context, config, extras))) {
+      // The SDK was neither initialized, nor scheduled for initialization
       mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
     }
   }
 
+  /**
+   * Creates a listener which waits for the Fyber Marketplace SDK initialization, and then requests the banner
+   * @param context
+   * @param config the ad unit's configuration
+   * @param extras
+   */
+  private FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener createInitListener(
+          final Context context, final FyberSpotConfig config, final Map<String, String> extras) {
+    final String spotId = config.spotId;
+    final long initStartTime = FyberAdapterMetrics.now();
+    return new FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener() {
+      @Override public void onFyberAdapterConfigurationResolved(
+              OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
+        FyberAdapterMetrics.recordSince(spotId, FyberAdFormat.BANNER, FyberAdapterMetrics.Stage.INIT_WAIT, initStartTime);
+        //note - we try to load ads when "FAILED" because an ad request will re-attempt to initialize the relevant parts of the SDK.
+        if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY || status == OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED) {
+          prepareAndRequestBanner(context, config, extras);
+        } else {
+          // The initialization callback may arrive on a background thread
+          FyberRequestPreparer.runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+              mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
+            }
+          });
+        }
+      }
+    };
+  }
+
   /**
    * Implementers should now show the ad for this base ad. Optional for inline ads that correctly
    * return a view from getAdView
    */
   protected void show() {
-    if (mBannerSpot != null && mBannerSpot.getSelectedUnitController() != null && mAdLayout != null) {
+    FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.BANNER, FyberAdapterMetrics.Stage.LOAD_TO_SHOW, mLoadedTime);
+    mShowTime = FyberAdapterMetrics.now();
+
+    // The controller was already bound when the ad was loaded. Only bind again if the selected controller has changed
+    if (mBannerSpot != null && mBannerSpot.getSelectedUnitController() != null && mAdLayout != null
+            && mBannerSpot.getSelectedUnitController() != mBoundController) {
       InneractiveAdViewUnitController controller = (InneractiveAdViewUnitController) mBannerSpot
               .getSelectedUnitController();
 
       controller.bindView(mAdLayout);
+      mBoundController = controller;
     }
   }
 
@@ -276,6 +495,15 @@ public class FyberBannerForMopub extends BaseAd {
    * @param message
    */
   private void log(String message) {
-    MoPubLog.log(CUSTOM, LOG_TAG, message);
+    FyberAdapterLog.log(LOG_TAG, message);
+  }
+
+  /**
+   * MopubLog helper, which concatenates the value only if logging is enabled
+   * @param message
+   * @param value
+   */
+  private void log(String message, Object value) {
+    FyberAdapterLog.log(LOG_TAG, message, value);
   }
 }
@@ -0,0 +1,226 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adapter wide circuit breaker for connection failures, shared by all ad formats
+ * <br>A burst of connection errors and timeouts opens the circuit, and loads fail immediately while it is open.
+ * Once the open period is over, a single probe request is let through. Its result either closes the circuit, or opens it again.
+ * <br>The probe is identified by the token returned from {@link #allowRequest()}. While the circuit is not closed, the results of
+ * all other requests are ignored, as they may have been sent before the circuit opened, or in the background
+ */
+final class FyberCircuitBreaker {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberCircuitBreaker";
+
+    /** Number of connection failures within the failure window, which opens the circuit */
+    private final static int FAILURE_THRESHOLD = 5;
+    private final static long FAILURE_WINDOW_MILLIS = 30 * 1000L;
+    /** Time in which the circuit stays open, before a probe request is allowed */
+    private final static long OPEN_MILLIS = 30 * 1000L;
+    /** A probe which has not completed within this time is considered lost, and another probe is allowed */
+    private final static long PROBE_TIMEOUT_MILLIS = 30 * 1000L;
+
+    // Circuit states
+    private final static int STATE_CLOSED = 0;
+    private final static int STATE_OPEN = 1;
+    private final static int STATE_HALF_OPEN = 2;
+
+    /** Token of a request which is not a probe */
+    final static long NO_TOKEN = 0;
+    /** Returned by {@link #allowRequest()} when the request should not be sent */
+    final static long REJECTED = -1;
+
+    private final static AtomicInteger sState = new AtomicInteger(STATE_CLOSED);
+    /** The time of the last state change */
+    private final static AtomicLong sStateTime = new AtomicLong();
+
+    /** Connection failures counted within the current failure window */
+    private final static AtomicInteger sFailures = new AtomicInteger();
+    private final static AtomicLong sFailureWindowStart = new AtomicLong();
+
+    /** Token of the probe which is currently in progress, or {@link #NO_TOKEN} */
+    private final static AtomicLong sProbeToken = new AtomicLong(NO_TOKEN);
+    private final static AtomicLong sLastProbeToken = new AtomicLong(NO_TOKEN);
+
+    private FyberCircuitBreaker() {
+    }
+
+    /**
+     * Checks if a load may go to the network. While half open, only the first caller is allowed, as a probe
+     * @return {@link #REJECTED} if the request should not be sent, {@link #NO_TOKEN} if the circuit is closed, or the probe's token,
+     * which must be reported back with the probe's result
+     */
+    static long allowRequest() {
+        int state = sState.get();
+        if (state == STATE_CLOSED) {
+            return NO_TOKEN;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (state == STATE_OPEN && now - sStateTime.get() < OPEN_MILLIS) {
+            return REJECTED;
+        }
+
+        long probeToken = sProbeToken.get();
+        if (probeToken != NO_TOKEN) {
+            if (now - sStateTime.get() < PROBE_TIMEOUT_MILLIS) {
+                return REJECTED;
+            }
+            // The probe is lost. Its token is dropped, so that its late result is ignored
+            sProbeToken.compareAndSet(probeToken, NO_TOKEN);
+        }
+
+        // Only the caller which installs its token sends the probe
+        long token = sLastProbeToken.incrementAndGet();
+        if (!sProbeToken.compareAndSet(NO_TOKEN, token)) {
+            return REJECTED;
+        }
+        sStateTime.set(now);
+        sState.set(STATE_HALF_OPEN);
+        log("circuit half open. Sending a probe request");
+        return token;
+    }
+
+    /**
+     * @param token a token returned by {@link #allowRequest()}
+     * @return true if the token belongs to a probe request
+     */
+    static boolean isProbe(long token) {
+        return token > NO_TOKEN;
+    }
+
+    /**
+     * @return true if the circuit is closed. Used for background requests, which should never act as a probe
+     */
+    static boolean isClosed() {
+        return sState.get() == STATE_CLOSED;
+    }
+
+    /**
+     * Reports the result of a request
+     * @param token the token returned by {@link #allowRequest()} for the request, or {@link #NO_TOKEN} for background requests
+     * @param errorCode the request's error, or null if it has succeeded
+     */
+    static void onRequestCompleted(long token, @Nullable InneractiveErrorCode errorCode) {
+        // While the circuit is not closed, only the admitted probe decides its next state. The token is consumed by its first result
+        if (sState.get() != STATE_CLOSED && (token == NO_TOKEN || !sProbeToken.compareAndSet(token, NO_TOKEN))) {
+            return;
+        }
+
+        if (errorCode == InneractiveErrorCode.CONNECTION_ERROR || errorCode == InneractiveErrorCode.CONNECTION_TIMEOUT) {
+            onConnectionFailure();
+        } else {
+            // Any other result means the endpoint is reachable
+            onReachable();
+        }
+    }
+
+    /**
+     * Gives up a probe which was cancelled before its result has arrived, so that the next load sends a new probe right away
+     * @param token the probe's token
+     */
+    static void releaseProbe(long token) {
+        if (isProbe(token) && sProbeToken.compareAndSet(token, NO_TOKEN)) {
+            log("probe cancelled");
+        }
+    }
+
+    private static void onReachable() {
+        sFailures.set(0);
+        if (sState.get() != STATE_CLOSED) {
+            sState.set(STATE_CLOSED);
+            sStateTime.set(SystemClock.elapsedRealtime());
+            log("circuit closed");
+        }
+    }
+
+    private static void onConnectionFailure() {
+        long now = SystemClock.elapsedRealtime();
+
+        // A failed probe opens the circuit again right away
+        if (sState.get() == STATE_HALF_OPEN) {
+            open(now);
+            return;
+        }
+
+        long windowStart = sFailureWindowStart.get();
+        if (now - windowStart > FAILURE_WINDOW_MILLIS && sFailureWindowStart.compareAndSet(windowStart, now)) {
+            sFailures.set(0);
+        }
+
+        if (sFailures.incrementAndGet() >= FAILURE_THRESHOLD && sState.compareAndSet(STATE_CLOSED, STATE_OPEN)) {
+            sStateTime.set(now);
+            log("circuit opened. Connection failures - ", FAILURE_THRESHOLD);
+        }
+    }
+
+    private static void open(long now) {
+        sState.set(STATE_OPEN);
+        sStateTime.set(now);
+        log("probe failed. circuit opened again");
+    }
+
+    /**
+     * Closes the circuit and forgets all counted failures. Used by tests, so that one test's failures do not leak into the next
+     */
+    static void reset() {
+        sState.set(STATE_CLOSED);
+        sStateTime.set(0);
+        sFailures.set(0);
+        sFailureWindowStart.set(0);
+        sProbeToken.set(NO_TOKEN);
+    }
+
+    /**
+     * Writes the current state of the circuit
+     * @param writer the report's destination
+     */
+    static void dump(@NonNull PrintWriter writer) {
+        int state = sState.get();
+        String stateName = state == STATE_CLOSED ? "closed" : (state == STATE_OPEN ? "open" : "half open");
+        writer.println("Fyber adapter circuit breaker: state=" + stateName + " recentConnectionFailures=" + sFailures.get() +
+                               " msSinceStateChange=" + (SystemClock.elapsedRealtime() - sStateTime.get()));
+    }
+
+    /**
+     * MopubLog helper
+     * @param message
+     */
+    private static void log(String message) {
+        FyberAdapterLog.log(LOG_TAG, message);
+    }
+
+    /**
+     * MopubLog helper, which concatenates the value only if logging is enabled
+     * @param message
+     * @param value
+     */
+    private static void log(String message, Object value) {
+        FyberAdapterLog.log(LOG_TAG, message, value);
+    }
+}
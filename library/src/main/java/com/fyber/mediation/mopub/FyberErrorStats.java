@@ -0,0 +1,243 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
+import com.mopub.mobileads.MoPubErrorCode;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Maps Fyber's load errors to Mopub's error codes, and counts the outcomes of the ad requests of each spot
+ * <br>Every spot request is counted against the spot id it has requested, including raced, hedged, prefetch and refresh requests.
+ * The outcomes are counted into lock-free per minute buckets, which cover the last hour. Use {@link #getSnapshots(long)}
+ * in order to read the fill rate and the error counts of each spot over a recent time window
+ */
+public final class FyberErrorStats {
+    /** Duration of a single bucket */
+    private final static long BUCKET_MILLIS = 60 * 1000L;
+    /** Number of buckets, which bounds the longest window */
+    private final static int BUCKET_COUNT = 60;
+    /** The longest window which can be requested */
+    public final static long MAX_WINDOW_MILLIS = BUCKET_MILLIS * BUCKET_COUNT;
+
+    private final static InneractiveErrorCode[] ERROR_CODES = InneractiveErrorCode.values();
+    /** Outcome index of a successful request */
+    private final static int OUTCOME_FILL = 0;
+    /** Outcome index of a request which was still in progress when its load reached the deadline */
+    private final static int OUTCOME_TIMEOUT = 1;
+    /** Errors are counted at their ordinal + OUTCOME_FIRST_ERROR */
+    private final static int OUTCOME_FIRST_ERROR = 2;
+    private final static int OUTCOME_COUNT = ERROR_CODES.length + OUTCOME_FIRST_ERROR;
+
+    /** Fyber's load errors, and the matching Mopub error codes. Errors without an entry are reported as SERVER_ERROR */
+    private final static Map<InneractiveErrorCode, MoPubErrorCode> sErrorMapping = new EnumMap<>(InneractiveErrorCode.class);
+
+    static {
+        for (InneractiveErrorCode errorCode : ERROR_CODES) {
+            sErrorMapping.put(errorCode, MoPubErrorCode.SERVER_ERROR);
+        }
+        sErrorMapping.put(InneractiveErrorCode.CONNECTION_ERROR, MoPubErrorCode.NO_CONNECTION);
+        sErrorMapping.put(InneractiveErrorCode.CONNECTION_TIMEOUT, MoPubErrorCode.NETWORK_TIMEOUT);
+        sErrorMapping.put(InneractiveErrorCode.NO_FILL, MoPubErrorCode.NO_FILL);
+    }
+
+    private final static ConcurrentHashMap<String, SpotCounters> sCounters = new ConcurrentHashMap<>();
+
+    private FyberErrorStats() {
+    }
+
+    /**
+     * Maps a load error to Mopub's error code
+     * @param errorCode Fyber's load error
+     * @return the matching Mopub error code
+     */
+    @NonNull
+    static MoPubErrorCode toMoPubErrorCode(@NonNull InneractiveErrorCode errorCode) {
+        return sErrorMapping.get(errorCode);
+    }
+
+    /**
+     * Counts a successful request for the spot
+     * @param spotId the requested spot id
+     */
+    static void onSpotLoaded(@NonNull String spotId) {
+        countersOf(spotId).increment(OUTCOME_FILL);
+    }
+
+    /**
+     * Counts a failed request for the spot
+     * @param spotId the requested spot id
+     * @param errorCode Fyber's load error
+     */
+    static void onSpotFailed(@NonNull String spotId, @NonNull InneractiveErrorCode errorCode) {
+        countersOf(spotId).increment(errorCode.ordinal() + OUTCOME_FIRST_ERROR);
+    }
+
+    /**
+     * Counts a request which was abandoned, as its load has reached the deadline
+     * @param spotId the requested spot id
+     */
+    static void onSpotTimedOut(@NonNull String spotId) {
+        countersOf(spotId).increment(OUTCOME_TIMEOUT);
+    }
+
+    private static SpotCounters countersOf(String spotId) {
+        SpotCounters counters = sCounters.get(spotId);
+        if (counters == null) {
+            SpotCounters newCounters = new SpotCounters();
+            counters = sCounters.putIfAbsent(spotId, newCounters);
+            if (counters == null) {
+                counters = newCounters;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * @param windowMillis the time window to sum, up to {@link #MAX_WINDOW_MILLIS}. Rounded up to whole minutes
+     * @return the request outcomes of each spot which was requested within the window
+     */
+    @NonNull
+    public static List<Snapshot> getSnapshots(long windowMillis) {
+        int buckets = (int) Math.max(1, Math.min(BUCKET_COUNT, (windowMillis + BUCKET_MILLIS - 1) / BUCKET_MILLIS));
+        long currentBucket = SystemClock.elapsedRealtime() / BUCKET_MILLIS;
+
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, SpotCounters> entry : sCounters.entrySet()) {
+            long[] outcomes = entry.getValue().sum(currentBucket, buckets);
+            long errors = 0;
+            Map<InneractiveErrorCode, Long> errorCounts = new EnumMap<>(InneractiveErrorCode.class);
+            for (int i = OUTCOME_FIRST_ERROR; i < OUTCOME_COUNT; i++) {
+                if (outcomes[i] > 0) {
+                    errorCounts.put(ERROR_CODES[i - OUTCOME_FIRST_ERROR], outcomes[i]);
+                    errors += outcomes[i];
+                }
+            }
+            if (outcomes[OUTCOME_FILL] > 0 || outcomes[OUTCOME_TIMEOUT] > 0 || errors > 0) {
+                snapshots.add(new Snapshot(entry.getKey(), buckets * BUCKET_MILLIS, outcomes[OUTCOME_FILL], outcomes[OUTCOME_TIMEOUT],
+                                           errors, errorCounts));
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Writes the request outcomes of each spot over the last hour
+     * @param writer the report's destination
+     */
+    public static void dump(@NonNull PrintWriter writer) {
+        writer.println("Fyber adapter request outcomes (last hour):");
+        for (Snapshot snapshot : getSnapshots(MAX_WINDOW_MILLIS)) {
+            writer.print("  ");
+            writer.println(snapshot);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Clears all counters
+     */
+    public static void reset() {
+        sCounters.clear();
+    }
+
+    /**
+     * Request outcomes of a single spot, over a time window
+     */
+    public static final class Snapshot {
+        public final String spotId;
+        public final long windowMillis;
+        public final long fills;
+        /** Requests which were still in progress when their load reached the deadline */
+        public final long timeouts;
+        public final long errors;
+        /** Counts of the errors which have occurred, by error */
+        public final Map<InneractiveErrorCode, Long> errorCounts;
+
+        Snapshot(String spotId, long windowMillis, long fills, long timeouts, long errors, Map<InneractiveErrorCode, Long> errorCounts) {
+            this.spotId = spotId;
+            this.windowMillis = windowMillis;
+            this.fills = fills;
+            this.timeouts = timeouts;
+            this.errors = errors;
+            this.errorCounts = errorCounts;
+        }
+
+        /**
+         * @return the ratio of successful requests, out of all counted requests
+         */
+        public double getFillRate() {
+            long total = fills + timeouts + errors;
+            return total == 0 ? 0 : (double) fills / total;
+        }
+
+        @Override
+        public String toString() {
+            return "spot=" + spotId + " windowMs=" + windowMillis + " fills=" + fills + " timeouts=" + timeouts + " errors=" + errors +
+                    " fillRate=" + String.format(Locale.US, "%.3f", getFillRate()) + " " + errorCounts;
+        }
+    }
+
+    /**
+     * Outcome counters of a single spot, as a ring of per minute buckets
+     */
+    private static final class SpotCounters {
+        /** The minute each bucket currently counts */
+        private final AtomicLongArray mBucketTimes = new AtomicLongArray(BUCKET_COUNT);
+        /** Outcome counts, indexed by bucket and outcome */
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT * OUTCOME_COUNT);
+
+        void increment(int outcome) {
+            long bucket = SystemClock.elapsedRealtime() / BUCKET_MILLIS;
+            int index = (int) (bucket % BUCKET_COUNT);
+
+            // The first writer of a new minute recycles the bucket. Counts which race with the reset may be lost
+            long bucketTime = mBucketTimes.get(index);
+            if (bucketTime != bucket && mBucketTimes.compareAndSet(index, bucketTime, bucket)) {
+                for (int i = 0; i < OUTCOME_COUNT; i++) {
+                    mCounts.set(index * OUTCOME_COUNT + i, 0);
+                }
+            }
+            mCounts.incrementAndGet(index * OUTCOME_COUNT + outcome);
+        }
+
+        long[] sum(long currentBucket, int buckets) {
+            long[] outcomes = new long[OUTCOME_COUNT];
+            for (int index = 0; index < BUCKET_COUNT; index++) {
+                long age = currentBucket - mBucketTimes.get(index);
+                if (age < 0 || age >= buckets) {
+                    continue;
+                }
+                for (int i = 0; i < OUTCOME_COUNT; i++) {
+                    outcomes[i] += mCounts.get(index * OUTCOME_COUNT + i);
+                }
+            }
+            return outcomes;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
+import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
+import com.mopub.mobileads.MoPubErrorCode;
+
+import java.util.Map;
+
+/**
+ * Keeps the loaded ad of a fullscreen adapter fresh while it is waiting to be shown
+ * <br>Shortly before the loaded spot reaches the inventory cache's time to live, a replacement is taken from the cache or requested
+ * in the background. The adapter then swaps it in, so that show() finds a ready ad instead of reporting EXPIRED.
+ * <br>Must be used from the main thread
+ */
+final class FyberFullscreenRefresher {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberFullscreenRefresher";
+
+    /** Time before the expected expiry, in which the replacement is requested */
+    private final static long REFRESH_MARGIN_MILLIS = 2 * 60 * 1000L;
+    /** Time between attempts, after a replacement request has failed */
+    private final static long RETRY_DELAY_MILLIS = 60 * 1000L;
+    /**
+     * Longest wait between checks of the spot's age. Handler delays are measured in uptime, which stops while the device sleeps,
+     * whereas the spot ages in elapsed real time. Checking in steps shorter than the refresh margin keeps the refresh on time after a sleep
+     */
+    private final static long MAX_CHECK_INTERVAL_MILLIS = 60 * 1000L;
+
+    /**
+     * Receives the replacement spot
+     */
+    interface Listener {
+        /**
+         * @param spot a fresh spot, which is ready to be shown. The listener owns it from now on
+         */
+        void onSpotRefreshed(@NonNull InneractiveAdSpot spot);
+    }
+
+    private final static Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final FyberAdFormat mFormat;
+    private final Listener mListener;
+
+    private String mSpotId;
+    private Map<String, String> mLocalExtras;
+    private FyberSpotConfig mConfig;
+    private FyberHedgedRequest mRequest;
+    /** The time the current spot has finished loading, in {@link SystemClock#elapsedRealtime()} time base */
+    private long mLoadTime;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (SystemClock.elapsedRealtime() < refreshTime()) {
+                scheduleCheck();
+            } else {
+                refresh();
+            }
+        }
+    };
+
+    /**
+     * @param format the refreshed ad format
+     * @param listener receives the replacement spots
+     */
+    FyberFullscreenRefresher(@NonNull FyberAdFormat format, @NonNull Listener listener) {
+        mFormat = format;
+        mListener = listener;
+    }
+
+    /**
+     * Schedules the replacement of a loaded spot. Replaces any previously scheduled refresh
+     * @param spotId Fyber's primary spot id
+     * @param localExtras local extras, used for populating the ad requests
+     * @param config the ad unit's configuration
+     * @param loadTime the time the spot has finished loading, in {@link SystemClock#elapsedRealtime()} time base
+     */
+    void schedule(@NonNull String spotId, Map<String, String> localExtras, @NonNull FyberSpotConfig config, long loadTime) {
+        cancel();
+        mSpotId = spotId;
+        mLocalExtras = localExtras;
+        mConfig = config;
+        mLoadTime = loadTime;
+        scheduleCheck();
+    }
+
+    /**
+     * @return the time in which the current spot should be replaced, in {@link SystemClock#elapsedRealtime()} time base
+     */
+    private long refreshTime() {
+        return mLoadTime + FyberAdInventoryCache.get().getTtlMillis() - REFRESH_MARGIN_MILLIS;
+    }
+
+    private void scheduleCheck() {
+        long delay = Math.max(0, refreshTime() - SystemClock.elapsedRealtime());
+        sMainHandler.postDelayed(mRefreshRunnable, Math.min(delay, MAX_CHECK_INTERVAL_MILLIS));
+    }
+
+    /**
+     * Stops the scheduled refresh, and a replacement request which is still in progress
+     */
+    void cancel() {
+        sMainHandler.removeCallbacks(mRefreshRunnable);
+        if (mRequest != null) {
+            mRequest.cancel();
+            mRequest = null;
+        }
+    }
+
+    private void refresh() {
+        // A spot which was prefetched in the meanwhile is the cheapest replacement. Spots which are about to expire themselves are evicted,
+        // as they would be refreshed again right away
+        FyberAdInventoryCache.CachedSpot cachedSpot = FyberAdInventoryCache.get().pollEntry(mConfig.spotIds, REFRESH_MARGIN_MILLIS);
+        if (cachedSpot != null) {
+            FyberAdapterLog.log(LOG_TAG, "replacing spot with a cached spot for ", mSpotId);
+            onRefreshed(cachedSpot.spot, cachedSpot.loadTime);
+            return;
+        }
+
+        // A refresh is a background request, so it never acts as the circuit breaker's probe
+        if (!FyberCircuitBreaker.isClosed()) {
+            sMainHandler.postDelayed(mRefreshRunnable, RETRY_DELAY_MILLIS);
+            return;
+        }
+
+        FyberAdapterLog.log(LOG_TAG, "spot is about to expire. Requesting a replacement for ", mSpotId);
+        mRequest = new FyberHedgedRequest(mFormat, mSpotId, mLocalExtras, mConfig, new FyberHedgedRequest.Listener() {
+            @Override
+            public void onSpotLoaded(@NonNull InneractiveAdSpot spot, @NonNull String spotId) {
+                mRequest = null;
+                onRefreshed(spot, SystemClock.elapsedRealtime());
+            }
+
+            @Override
+            public void onSpotFailed(@NonNull InneractiveErrorCode errorCode) {
+                FyberAdapterLog.log(LOG_TAG, "replacement request failed with error: ", errorCode);
+                mRequest = null;
+                sMainHandler.postDelayed(mRefreshRunnable, RETRY_DELAY_MILLIS);
+            }
+
+            @Override
+            public void onDeadlineReached() {
+                mRequest = null;
+                sMainHandler.postDelayed(mRefreshRunnable, RETRY_DELAY_MILLIS);
+            }
+
+            @Override
+            public void onLoadSkipped(@NonNull MoPubErrorCode errorCode) {
+                // Not called, as the refresh is started without the fail fast checks
+            }
+        });
+        mRequest.start();
+    }
+
+    private void onRefreshed(InneractiveAdSpot spot, long loadTime) {
+        schedule(mSpotId, mLocalExtras, mConfig, loadTime);
+        mListener.onSpotRefreshed(spot);
+    }
+}
@@ -0,0 +1,398 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdRequest;
+import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
+import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
+import com.mopub.mobileads.MoPubErrorCode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single ad load, with an optional deadline and an optional hedged backup request
+ * <br>All of the ad unit's spot ids are requested in parallel. If the primary request has not completed within the hedge delay,
+ * a second request is sent for the primary spot id. The first spot to load wins. For fullscreen formats, the requests which are still
+ * in progress are parked in the inventory cache if it is enabled for their spot id, otherwise they are destroyed. If no spot has loaded
+ * by the deadline, the load fails.
+ * <br>The outcome of each request is counted in {@link FyberErrorStats} against the spot id it has requested. Parked requests are
+ * counted by the inventory cache once they complete.
+ * <br>A circuit breaker probe is sent as a single request, with no racing and no hedging, so that exactly one result decides the circuit's state.
+ * <br>Must be used from the main thread
+ */
+final class FyberHedgedRequest {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberHedgedRequest";
+
+    /** Value for a disabled hedge delay or deadline */
+    final static long DISABLED = -1;
+
+    /** Number of recorded requests, from which the observed latency is trusted */
+    private final static long MIN_OBSERVED_REQUESTS = 20;
+    /** The observed request latency percentile used as a hedging threshold */
+    private final static double HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * Receives the result of the load. Exactly one of the methods is called, unless the request was cancelled
+     */
+    interface Listener {
+        void onSpotLoaded(@NonNull InneractiveAdSpot spot, @NonNull String spotId);
+
+        void onSpotFailed(@NonNull InneractiveErrorCode errorCode);
+
+        void onDeadlineReached();
+
+        /**
+         * Called by {@link #startFor} instead of sending any request, while all spots are backing off or the circuit is open
+         * @param errorCode the error to report to Mopub
+         */
+        void onLoadSkipped(@NonNull MoPubErrorCode errorCode);
+    }
+
+    private final static Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final FyberAdFormat mFormat;
+    private final String mSpotId;
+    private final String[] mSpotIds;
+    private final Map<String, String> mLocalExtras;
+    private final long mHedgeDelayMillis;
+    private final long mDeadlineMillis;
+    private final Listener mListener;
+
+    /** Spots with a request in progress */
+    private final List<InneractiveAdSpot> mPendingSpots = new ArrayList<>(2);
+    /** The spot id requested by each of the pending spots */
+    private final List<String> mPendingSpotIds = new ArrayList<>(2);
+    /** The circuit breaker token of the load. See {@link FyberCircuitBreaker#allowRequest()} */
+    private long mCircuitToken = FyberCircuitBreaker.NO_TOKEN;
+    /** The first request of the primary spot id, whose latency is sampled for the adaptive hedge delay, until it completes */
+    private InneractiveAdSpot mPrimarySpot;
+    private long mPrimaryRequestTime;
+    private boolean mHedged;
+    private boolean mCompleted;
+
+    private final Runnable mHedgeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mCompleted && !mHedged && !FyberNoFillBackoff.isBackingOff(mSpotId)) {
+                if (FyberAdapterLog.isLoggable()) {
+                    log("request for " + mSpotId + " is slower than " + mHedgeDelayMillis + "ms. Sending a backup request");
+                }
+                mHedged = true;
+                FyberAdapterLog.trace(FyberAdapterLog.Event.HEDGE_SENT, mFormat, mSpotId, -1);
+                requestSpot(mSpotId);
+            }
+        }
+    };
+
+    private final Runnable mDeadlineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mCompleted) {
+                if (FyberAdapterLog.isLoggable()) {
+                    log("request for " + mSpotId + " has reached its deadline of " + mDeadlineMillis + "ms");
+                }
+                for (String spotId : mPendingSpotIds) {
+                    FyberErrorStats.onSpotTimedOut(spotId);
+                }
+                // A probe which has not answered in time counts as a connection timeout
+                if (FyberCircuitBreaker.isProbe(mCircuitToken)) {
+                    reportCircuitResult(InneractiveErrorCode.CONNECTION_TIMEOUT);
+                }
+                complete(false);
+                mListener.onDeadlineReached();
+            }
+        }
+    };
+
+    /**
+     * @param format the requested ad format
+     * @param spotId Fyber's primary spot id
+     * @param localExtras local extras, used for populating the ad requests
+     * @param config the ad unit's configuration, defining the raced spot ids, the hedge delay and the deadline
+     * @param listener receives the load result
+     */
+    FyberHedgedRequest(@NonNull FyberAdFormat format, @NonNull String spotId, Map<String, String> localExtras,
+                       @NonNull FyberSpotConfig config, @NonNull Listener listener) {
+        mFormat = format;
+        mSpotId = spotId;
+        mSpotIds = config.spotIds;
+        mLocalExtras = localExtras;
+        mHedgeDelayMillis = hedgeDelayOf(format, spotId, config);
+        mDeadlineMillis = config.loadTimeoutMillis > 0 ? config.loadTimeoutMillis : DISABLED;
+        mListener = listener;
+    }
+
+    /**
+     * Starts the load of an ad unit, unless it should fail fast: while all of its spot ids are backing off after no fill,
+     * or while the circuit breaker rejects the request. Fullscreen formats then refill the inventory cache in the background
+     * @param format the requested ad format
+     * @param spotId Fyber's primary spot id
+     * @param localExtras local extras, used for populating the ad requests
+     * @param config the ad unit's configuration
+     * @param listener receives the load result
+     * @return the load in progress, to be cancelled when the ad is invalidated. null if it has already completed, or was skipped
+     */
+    @Nullable
+    static FyberHedgedRequest startFor(@NonNull FyberAdFormat format, @NonNull String spotId, Map<String, String> localExtras,
+                                       @NonNull FyberSpotConfig config, @NonNull Listener listener) {
+        // Fail fast, while all of the ad unit's spots are backing off after no fill
+        if (FyberNoFillBackoff.isBackingOff(config.spotIds)) {
+            log("spot is backing off after no fill. Skipping request");
+            FyberAdapterLog.trace(FyberAdapterLog.Event.SKIPPED_BACKOFF, format, spotId, -1);
+            listener.onLoadSkipped(MoPubErrorCode.NO_FILL);
+            return null;
+        }
+
+        // Fail fast, while the Fyber endpoint is considered unreachable
+        long circuitToken = FyberCircuitBreaker.allowRequest();
+        if (circuitToken == FyberCircuitBreaker.REJECTED) {
+            log("Circuit breaker is open after repeated connection failures. Skipping request");
+            FyberAdapterLog.trace(FyberAdapterLog.Event.SKIPPED_CIRCUIT_OPEN, format, spotId, -1);
+            listener.onLoadSkipped(MoPubErrorCode.NO_CONNECTION);
+            return null;
+        }
+
+        FyberHedgedRequest request = new FyberHedgedRequest(format, spotId, localExtras, config, listener);
+        request.start(circuitToken);
+
+        // Prepare the next ads for this spot in the background. Banners are buffered by the banner adapter itself
+        if (format != FyberAdFormat.BANNER) {
+            FyberAdInventoryCache.get().refill(format, spotId, localExtras);
+        }
+        return request.mCompleted ? null : request;
+    }
+
+    /**
+     * Sends the requests for all spot ids, and schedules the backup request and the deadline
+     */
+    void start() {
+        start(FyberCircuitBreaker.NO_TOKEN);
+    }
+
+    /**
+     * Sends the requests, and schedules the backup request and the deadline
+     * @param circuitToken the token returned by {@link FyberCircuitBreaker#allowRequest()}. A probe only requests a single spot id
+     */
+    void start(long circuitToken) {
+        mCircuitToken = circuitToken;
+        if (FyberCircuitBreaker.isProbe(circuitToken)) {
+            startProbe();
+            return;
+        }
+
+        if (mHedgeDelayMillis != DISABLED) {
+            sMainHandler.postDelayed(mHedgeRunnable, mHedgeDelayMillis);
+        }
+        if (mDeadlineMillis != DISABLED) {
+            sMainHandler.postDelayed(mDeadlineRunnable, mDeadlineMillis);
+        }
+
+        // Spots which have recently returned no fill are skipped
+        if (!FyberNoFillBackoff.isBackingOff(mSpotId)) {
+            requestSpot(mSpotId);
+        }
+        for (String spotId : mSpotIds) {
+            if (!mCompleted && !spotId.equals(mSpotId) && !FyberNoFillBackoff.isBackingOff(spotId)) {
+                requestSpot(spotId);
+            }
+        }
+
+        if (!mCompleted && mPendingSpots.isEmpty()) {
+            complete(false);
+            mListener.onSpotFailed(InneractiveErrorCode.NO_FILL);
+        }
+    }
+
+    /**
+     * Requests the first spot id which is not backing off, with no backup request
+     */
+    private void startProbe() {
+        if (mDeadlineMillis != DISABLED) {
+            sMainHandler.postDelayed(mDeadlineRunnable, mDeadlineMillis);
+        }
+
+        String probeSpotId = null;
+        if (!FyberNoFillBackoff.isBackingOff(mSpotId)) {
+            probeSpotId = mSpotId;
+        } else {
+            for (String spotId : mSpotIds) {
+                if (!FyberNoFillBackoff.isBackingOff(spotId)) {
+                    probeSpotId = spotId;
+                    break;
+                }
+            }
+        }
+
+        if (probeSpotId == null) {
+            // The probe's token must be given back, otherwise no other probe is allowed until it times out
+            reportCircuitResult(InneractiveErrorCode.NO_FILL);
+            complete(false);
+            mListener.onSpotFailed(InneractiveErrorCode.NO_FILL);
+            return;
+        }
+
+        requestSpot(probeSpotId);
+    }
+
+    /**
+     * Stops waiting for the result, and destroys all spots which are still loading. The listener will not be called
+     */
+    void cancel() {
+        if (!mCompleted) {
+            FyberCircuitBreaker.releaseProbe(mCircuitToken);
+            mCircuitToken = FyberCircuitBreaker.NO_TOKEN;
+            complete(false);
+        }
+    }
+
+    private void requestSpot(final String spotId) {
+        final InneractiveAdSpot spot = FyberSpotPool.get().acquire(mFormat);
+        mPendingSpots.add(spot);
+        mPendingSpotIds.add(spotId);
+        if (!mHedged && mPrimarySpot == null && spotId.equals(mSpotId)) {
+            mPrimarySpot = spot;
+            mPrimaryRequestTime = FyberAdapterMetrics.now();
+        }
+
+        InneractiveAdRequest request = new InneractiveAdRequest(spotId);
+        FyberAdapterConfiguration.updateRequestFromExtras(request, mLocalExtras);
+
+        spot.setRequestListener(new InneractiveAdSpot.RequestListener() {
+            @Override
+            public void onInneractiveSuccessfulAdRequest(InneractiveAdSpot adSpot) {
+                recordPrimaryLatency(spot);
+                FyberNoFillBackoff.onFill(spotId);
+                reportCircuitResult(null);
+                if (mCompleted || !removePending(spot)) {
+                    return;
+                }
+                FyberErrorStats.onSpotLoaded(spotId);
+
+                complete(true);
+                mListener.onSpotLoaded(spot, spotId);
+            }
+
+            @Override
+            public void onInneractiveFailedAdRequest(InneractiveAdSpot adSpot, InneractiveErrorCode errorCode) {
+                recordPrimaryLatency(spot);
+                if (errorCode == InneractiveErrorCode.NO_FILL) {
+                    FyberNoFillBackoff.onNoFill(spotId);
+                }
+                reportCircuitResult(errorCode);
+                if (mCompleted || !removePending(spot)) {
+                    return;
+                }
+                FyberErrorStats.onSpotFailed(spotId, errorCode);
+
+                // The spot has no ad content, so it can serve the next request
+                FyberSpotPool.get().recycle(mFormat, spot);
+
+                // Keep on waiting for the other requests, if there are any
+                if (mPendingSpots.isEmpty()) {
+                    complete(false);
+                    mListener.onSpotFailed(errorCode);
+                }
+            }
+        });
+
+        spot.requestAd(request);
+    }
+
+    /**
+     * Reports a result to the circuit breaker. A probe's token is reported only once, as it may be closed by the first report
+     * @param errorCode the request's error, or null if it has succeeded
+     */
+    private void reportCircuitResult(InneractiveErrorCode errorCode) {
+        long token = mCircuitToken;
+        mCircuitToken = FyberCircuitBreaker.NO_TOKEN;
+        FyberCircuitBreaker.onRequestCompleted(token, errorCode);
+    }
+
+    /**
+     * Records the latency of the primary spot id's own request. The load's overall latency is not used, as it is shortened by
+     * the backup request and by the other raced spot ids
+     */
+    private void recordPrimaryLatency(InneractiveAdSpot spot) {
+        if (spot == mPrimarySpot) {
+            mPrimarySpot = null;
+            FyberAdapterMetrics.recordSince(mSpotId, mFormat, FyberAdapterMetrics.Stage.PRIMARY_REQUEST, mPrimaryRequestTime);
+        }
+    }
+
+    private boolean removePending(InneractiveAdSpot spot) {
+        int index = mPendingSpots.indexOf(spot);
+        if (index < 0) {
+            return false;
+        }
+        mPendingSpots.remove(index);
+        mPendingSpotIds.remove(index);
+        return true;
+    }
+
+    /**
+     * Marks the load as completed, and cancels the timers
+     * @param loaded true if a spot has won the race. The fullscreen spots which are still loading are then parked in the inventory cache,
+     *               if it is enabled for their spot id. Otherwise, or for banners, they are destroyed
+     */
+    private void complete(boolean loaded) {
+        mCompleted = true;
+        mPrimarySpot = null;
+        sMainHandler.removeCallbacks(mHedgeRunnable);
+        sMainHandler.removeCallbacks(mDeadlineRunnable);
+
+        boolean park = loaded && mFormat != FyberAdFormat.BANNER;
+        for (int i = 0; i < mPendingSpots.size(); i++) {
+            if (park && FyberAdInventoryCache.get().isEnabledFor(mPendingSpotIds.get(i))) {
+                FyberAdInventoryCache.get().park(mFormat, mPendingSpotIds.get(i), mPendingSpots.get(i));
+            } else {
+                FyberSpotPool.get().release(mPendingSpots.get(i));
+            }
+        }
+        mPendingSpots.clear();
+        mPendingSpotIds.clear();
+    }
+
+    /**
+     * The hedge delay is configured per ad unit. Once enough primary requests were recorded for the spot, the delay is raised to the
+     * observed primary request latency percentile, so that backup requests are only sent for the slow tail
+     */
+    private static long hedgeDelayOf(FyberAdFormat format, String spotId, FyberSpotConfig config) {
+        if (config.hedgeDelayMillis <= 0) {
+            return DISABLED;
+        }
+
+        long observed = FyberAdapterMetrics.getPercentile(spotId, format, FyberAdapterMetrics.Stage.PRIMARY_REQUEST,
+                                                          HEDGE_PERCENTILE, MIN_OBSERVED_REQUESTS);
+        return Math.max(config.hedgeDelayMillis, observed);
+    }
+
+    /**
+     * MopubLog helper
+     * @param message
+     */
+    private static void log(String message) {
+        FyberAdapterLog.log(LOG_TAG, message);
+    }
+}
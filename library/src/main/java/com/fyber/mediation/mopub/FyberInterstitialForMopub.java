@@ -17,34 +17,27 @@ package com.fyber.mediation.mopub;
 
 import android.app.Activity;
 import android.content.Context;
-import android.text.TextUtils;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.fyber.inneractive.sdk.external.InneractiveAdManager;
 import com.fyber.inneractive.sdk.external.InneractiveUnitController.AdDisplayError;
-import com.fyber.inneractive.sdk.external.InneractiveAdRequest;
 import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
-import com.fyber.inneractive.sdk.external.InneractiveAdSpotManager;
 import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
 import com.fyber.inneractive.sdk.external.InneractiveFullscreenAdEventsListener;
 import com.fyber.inneractive.sdk.external.InneractiveFullscreenUnitController;
 import com.fyber.inneractive.sdk.external.InneractiveFullscreenVideoContentController;
-import com.fyber.inneractive.sdk.external.InneractiveMediationName;
 import com.fyber.inneractive.sdk.external.OnFyberMarketplaceInitializedListener;
-import com.fyber.inneractive.sdk.external.VideoContentListener;
 import com.mopub.common.LifecycleListener;
 import com.mopub.common.Preconditions;
-import com.mopub.common.logging.MoPubLog;
-import com.mopub.common.MoPub;
 import com.mopub.mobileads.AdData;
 import com.mopub.mobileads.BaseAd;
 import com.mopub.mobileads.MoPubErrorCode;
+import java.lang.ref.WeakReference;
 import java.util.Map;
 
-import static com.mopub.common.logging.MoPubLog.AdapterLogEvent.CUSTOM;
-
 /**
  * Implements Fyber's interstitial Mopub's custom event class
  */
@@ -60,10 +53,70 @@ public class FyberInterstitialForMopub extends BaseAd {
 
   String mSpotId;
   /**
-   * Context for showing the Ad
+   * Context of the load request. Only weakly referenced, so that a long living ad does not retain its Activity
    */
-  @Nullable
-  Context mContext;
+  WeakReference<Context> mContextRef = new WeakReference<>(null);
+
+  /**
+   * Life cycle timestamps, used for latency metrics
+   */
+  long mRequestTime;
+  long mLoadedTime;
+  long mShowTime;
+
+  /**
+   * The load which is currently in progress
+   */
+  FyberHedgedRequest mHedgedRequest;
+
+  /**
+   * Set once Mopub has invalidated this ad. Requests which are still being prepared are then dropped
+   */
+  boolean mInvalidated;
+
+  /**
+   * The ad unit's configuration of the current request, used for replacing a stale ad at show time
+   */
+  FyberSpotConfig mConfig;
+
+  /**
+   * Replaces the loaded ad shortly before it expires, while it is waiting to be shown
+   */
+  final FyberFullscreenRefresher mRefresher = new FyberFullscreenRefresher(FyberAdFormat.INTERSTITIAL, new FyberFullscreenRefresher.Listener() {
+    @Override
+    public void onSpotRefreshed(@NonNull InneractiveAdSpot spot) {
+      log("replaced the loaded ad before it has expired");
+      if (mInterstitialSpot != null) {
+        FyberSpotPool.get().release(mInterstitialSpot);
+      }
+      mInterstitialSpot = spot;
+    }
+  });
+
+  /**
+   * Samples the video progress of the shown ad. Created once, and reused across shows
+   */
+  final FyberVideoProgressTracker mVideoProgressTracker = new FyberVideoProgressTracker(FyberAdFormat.INTERSTITIAL,
+          new FyberVideoProgressTracker.Listener() {
+    /**
+     * Called by the progress tracker once per sampled playback event
+     * <br>COMPLETE means that the video was played to the end. It can be used for incentive flow
+     * <br>Note: This event does not indicate that the interstitial was closed
+     */
+    @Override
+    public void onVideoEvent(@NonNull FyberAdapterMetrics.VideoEvent event) {
+      if (event == FyberAdapterMetrics.VideoEvent.COMPLETE) {
+        log("Got video content completed event");
+        FyberAdapterLog.trace(FyberAdapterLog.Event.VIDEO_COMPLETED, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
+      }
+    }
+
+    @Override
+    public void onVideoPlayerError() {
+      log("Got video content play error event");
+      FyberAdapterLog.trace(FyberAdapterLog.Event.VIDEO_ERROR, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
+    }
+  });
 
   @Nullable
   @Override
@@ -88,18 +141,21 @@ public class FyberInterstitialForMopub extends BaseAd {
     Preconditions.checkNotNull(adData);
 
     log("load interstitial requested");
+    FyberAdapterLog.trace(FyberAdapterLog.Event.LOAD_REQUESTED, FyberAdFormat.INTERSTITIAL, null, -1);
 
-    mContext = context;
+    mContextRef = new WeakReference<>(context);
+    FyberActivityTracker.init(context);
+    FyberActivityTracker.watch(LOG_TAG, context instanceof Activity ? (Activity) context : null);
 
     setAutomaticImpressionAndClickTracking(false);
 
     final Map<String, String> extras = adData.getExtras();
 
     // Set variables from MoPub console.
-    final String appId = extras == null ? null : extras.get(FyberMopubMediationDefs.REMOTE_KEY_APP_ID);
-    final String spotId = extras == null ? null : extras.get(FyberMopubMediationDefs.REMOTE_KEY_SPOT_ID);
+    final FyberSpotConfig config = FyberSpotConfig.from(adData);
+    final String spotId = config.spotId;
 
-    if (TextUtils.isEmpty(spotId)) {
+    if (!config.hasSpotId()) {
       log("No spotID defined for ad unit. Cannot load interstitial");
       mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
       return;
@@ -107,36 +163,84 @@ public class FyberInterstitialForMopub extends BaseAd {
 
     mSpotId = spotId;
 
+    if (config.prefetchDepth != FyberSpotConfig.NOT_SET) {
+      FyberAdInventoryCache.get().setDepth(spotId, config.prefetchDepth);
+    }
+
     // If we've received an appId for this unit, try initializing the Fyber Marketplace SDK, if it was not already initialized
-    if (!TextUtils.isEmpty(appId)) {
-      FyberAdapterConfiguration.initializeFyberMarketplace(context, appId, extras.containsKey(
-              FyberMopubMediationDefs.REMOTE_KEY_DEBUG),
-              new FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener() {
-                @Override public void onFyberAdapterConfigurationResolved(
-                        OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
-                  //note - we try to load ads when "FAILED" because an ad request will re-attempt to initialize the relevant parts of the SDK.
-                  if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY || status == OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED) {
-                    requestInterstitial(context, spotId, extras);
-                  } else {
-                    mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
-                  }
-                }
-              });
+    if (config.hasAppId()) {
+      FyberAdapterConfiguration.initializeFyberMarketplace(context, config.appId, config.debug,
+              createInitListener(context, config, extras));
     } else if (InneractiveAdManager.wasInitialized()) {
-      requestInterstitial(context, spotId, extras);
-    } else {
+      prepareAndRequestInterstitial(context, config, extras);
+    } else if (!FyberAdapterConfiguration.initializePendingIfNeeded(createInitListener(context, config, extras))) {
+      // The SDK was neither initialized, nor scheduled for initialization
       mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
     }
   }
 
+  /**
+   * Creates a listener which waits for the Fyber Marketplace SDK initialization, and then requests the interstitial
+   * @param context
+   * @param config the ad unit's configuration
+   * @param extras
+   */
+  private FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener createInitListener(
+          final Context context, final FyberSpotConfig config, final Map<String, String> extras) {
+    final String spotId = config.spotId;
+    final long initStartTime = FyberAdapterMetrics.now();
+    return new FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener() {
+      @Override public void onFyberAdapterConfigurationResolved(
+              OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
+        FyberAdapterMetrics.recordSince(spotId, FyberAdFormat.INTERSTITIAL, FyberAdapterMetrics.Stage.INIT_WAIT, initStartTime);
+        //note - we try to load ads when "FAILED" because an ad request will re-attempt to initialize the relevant parts of the SDK.
+        if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY || status == OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED) {
+          prepareAndRequestInterstitial(context, config, extras);
+        } else {
+          // The initialization callback may arrive on a background thread
+          FyberRequestPreparer.runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+              mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
+            }
+          });
+        }
+      }
+    };
+  }
+
   /**
    * Called by the Mopub infra-structure in order for the plugin to start showing a Fyber Marketplace interstitial
    */
   @Override
   public void show() {
     log("show interstitial called");
+    FyberAdapterLog.trace(FyberAdapterLog.Event.SHOW, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
+    mRefresher.cancel();
+    // The loaded ad may have gone stale while waiting. Fall back to a fresh cached ad, rather than failing with EXPIRED
+    if ((mInterstitialSpot == null || !mInterstitialSpot.isReady()) && mConfig != null) {
+      InneractiveAdSpot cachedSpot = FyberAdInventoryCache.get().poll(mConfig.spotIds);
+      if (cachedSpot != null) {
+        log("loaded ad has expired. Showing a cached ad instead");
+        if (mInterstitialSpot != null) {
+          FyberSpotPool.get().release(mInterstitialSpot);
+        }
+        mInterstitialSpot = cachedSpot;
+      }
+    }
+
     // check if the ad is ready
     if (mInterstitialSpot != null && mInterstitialSpot.isReady()) {
+      // Show on the current foreground Activity. The Activity of the load request may be long gone by now
+      Activity activity = resolveShowActivity();
+      if (activity == null) {
+        log("No resumed activity to show the ad on");
+        mInteractionListener.onAdFailed(MoPubErrorCode.FULLSCREEN_SHOW_ERROR);
+        return;
+      }
+
+      FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.INTERSTITIAL, FyberAdapterMetrics.Stage.LOAD_TO_SHOW, mLoadedTime);
+      mShowTime = FyberAdapterMetrics.now();
 
       InneractiveFullscreenUnitController fullscreenUnitController = (InneractiveFullscreenUnitController) mInterstitialSpot
               .getSelectedUnitController();
@@ -149,6 +253,7 @@ public class FyberInterstitialForMopub extends BaseAd {
         @Override
         public void onAdDismissed(InneractiveAdSpot adSpot) {
           log("onAdDismissed");
+          FyberAdapterLog.trace(FyberAdapterLog.Event.DISMISSED, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
           mInteractionListener.onAdDismissed();
         }
 
@@ -159,6 +264,8 @@ public class FyberInterstitialForMopub extends BaseAd {
         @Override
         public void onAdImpression(InneractiveAdSpot adSpot) {
           log("onAdImpression");
+          FyberAdapterLog.trace(FyberAdapterLog.Event.IMPRESSION, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
+          FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.INTERSTITIAL, FyberAdapterMetrics.Stage.SHOW_TO_IMPRESSION, mShowTime);
           mInteractionListener.onAdShown();
           mInteractionListener.onAdImpression();
         }
@@ -170,6 +277,7 @@ public class FyberInterstitialForMopub extends BaseAd {
         @Override
         public void onAdClicked(InneractiveAdSpot adSpot) {
           log("onAdClicked");
+          FyberAdapterLog.trace(FyberAdapterLog.Event.CLICK, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
           mInteractionListener.onAdClicked();
         }
 
@@ -189,7 +297,8 @@ public class FyberInterstitialForMopub extends BaseAd {
          */
         @Override
         public void onAdEnteredErrorState(InneractiveAdSpot adSpot, AdDisplayError error) {
-          log("onAdEnteredErrorState - " + error.getMessage());
+          log("onAdEnteredErrorState - ", error.getMessage());
+          FyberAdapterLog.trace(FyberAdapterLog.Event.ERROR_STATE, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
         }
 
         /**
@@ -202,35 +311,15 @@ public class FyberInterstitialForMopub extends BaseAd {
         }
       });
 
-      // Add video content controller, for controlling video ads
+      // Add video content controller, for controlling video ads. Raw progress ticks are sampled by the reused progress tracker
+      mVideoProgressTracker.reset(mSpotId, mShowTime);
       InneractiveFullscreenVideoContentController videoContentController = new InneractiveFullscreenVideoContentController();
-      videoContentController.setEventsListener(new VideoContentListener() {
-        @Override
-        public void onProgress(int totalDurationInMsec, int positionInMsec) {
-          log("Got video content progress: total time = " + totalDurationInMsec
-                  + " position = " + positionInMsec);
-        }
-
-        /**
-         * Called by Fyber marketplace when an Interstitial video ad was played to the end
-         * <br>Can be used for incentive flow
-         * <br>Note: This event does not indicate that the interstitial was closed
-         */
-        @Override
-        public void onCompleted() {
-          log("Got video content completed event");
-        }
-
-        @Override
-        public void onPlayerError() {
-          log("Got video content play error event");
-        }
-      });
+      videoContentController.setEventsListener(mVideoProgressTracker);
 
       // Now add the content controller to the unit controller
       fullscreenUnitController.addContentController(videoContentController);
 
-      fullscreenUnitController.show((Activity) mContext);
+      fullscreenUnitController.show(activity);
     } else {
       mInteractionListener.onAdFailed(MoPubErrorCode.EXPIRED);
       log("The Interstitial ad is not ready yet.");
@@ -244,76 +333,145 @@ public class FyberInterstitialForMopub extends BaseAd {
    */
   @Override
   protected void onInvalidate() {
+    mInvalidated = true;
     log("onInvalidate called by Mopub");
+    FyberAdapterLog.trace(FyberAdapterLog.Event.INVALIDATED, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
     // We do the cleanup on the event of loadInterstitial.
+    cancelHedgedRequest();
+    mRefresher.cancel();
     if (mInterstitialSpot != null) {
-      mInterstitialSpot.destroy();
+      FyberSpotPool.get().release(mInterstitialSpot);
       mInterstitialSpot = null;
     }
   }
 
+  /**
+   * Prepares the request in the background, and then requests the interstitial from the main thread
+   */
+  private void prepareAndRequestInterstitial(final Context context, final FyberSpotConfig config, final Map<String, String> extras) {
+    FyberRequestPreparer.prepare(extras, new Runnable() {
+      @Override
+      public void run() {
+        if (!mInvalidated) {
+          requestInterstitial(context, config, extras);
+        }
+      }
+    });
+  }
+
   /**
    * requests an interstitial ad from Fyber Marketplace
    * @param context
-   * @param spotId
+   * @param config the ad unit's configuration
    * @param localExtras
    */
-  private void requestInterstitial(final Context context, String spotId, Map<String, String> localExtras) {
-    mContext = context;
+  private void requestInterstitial(final Context context, final FyberSpotConfig config, final Map<String, String> localExtras) {
+    mContextRef = new WeakReference<>(context);
+    final String spotId = config.spotId;
 
     FyberAdapterConfiguration.updateGdprConsentStatusFromMopub();
 
+    mConfig = config;
+    cancelHedgedRequest();
+    mRefresher.cancel();
     if (mInterstitialSpot != null) {
-      mInterstitialSpot.destroy();
+      FyberSpotPool.get().release(mInterstitialSpot);
+      mInterstitialSpot = null;
     }
 
-    mInterstitialSpot = InneractiveAdSpotManager.get().createSpot();
-    // Set your mediation name and version
-    mInterstitialSpot.setMediationName(InneractiveMediationName.MOPUB);
-    mInterstitialSpot.setMediationVersion(MoPub.SDK_VERSION);
-
-    InneractiveFullscreenUnitController fullscreenUnitController = new InneractiveFullscreenUnitController();
-    mInterstitialSpot.addUnitController(fullscreenUnitController);
-
-    InneractiveAdRequest request = new InneractiveAdRequest(spotId);
-    FyberAdapterConfiguration.updateRequestFromExtras(request, localExtras);
+    // Complete the load from memory, if a prefetched spot is available
+    FyberAdInventoryCache.CachedSpot cachedSpot = FyberAdInventoryCache.get().pollEntry(config.spotIds);
+    if (cachedSpot != null) {
+      log("on ad loaded from inventory cache");
+      FyberAdapterLog.trace(FyberAdapterLog.Event.LOADED_FROM_CACHE, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
+      mInterstitialSpot = cachedSpot.spot;
+      mLoadedTime = FyberAdapterMetrics.now();
+      mRefresher.schedule(spotId, localExtras, config, cachedSpot.loadTime);
+      mLoadListener.onAdLoaded();
+      FyberAdInventoryCache.get().refill(FyberAdFormat.INTERSTITIAL, spotId, localExtras);
+      return;
+    }
 
     // Load ad
-    mInterstitialSpot.setRequestListener(new InneractiveAdSpot.RequestListener() {
+    mRequestTime = FyberAdapterMetrics.now();
+    mHedgedRequest = FyberHedgedRequest.startFor(FyberAdFormat.INTERSTITIAL, spotId, localExtras, config, new FyberHedgedRequest.Listener() {
 
       /**
        * Called by Fyber marketplace when an interstitial is ready for display
-       * @param adSpot Spot object
+       * @param spot Spot object
        */
-
       @Override
-      public void onInneractiveSuccessfulAdRequest(InneractiveAdSpot adSpot) {
-        log("on ad loaded successfully");
+      public void onSpotLoaded(@NonNull InneractiveAdSpot spot, @NonNull String loadedSpotId) {
+        log("on ad loaded successfully from spot ", loadedSpotId);
+        FyberAdapterLog.trace(FyberAdapterLog.Event.LOADED, FyberAdFormat.INTERSTITIAL, loadedSpotId, -1);
+        mHedgedRequest = null;
+        mInterstitialSpot = spot;
+        FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.INTERSTITIAL, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+        mLoadedTime = FyberAdapterMetrics.now();
+        mRefresher.schedule(spotId, localExtras, config, SystemClock.elapsedRealtime());
         mLoadListener.onAdLoaded();
       }
 
       /**
        * Called by Fyber marketplace when an interstitial fails loading
-       * @param adSpot Spot object
        * @param errorCode the failure's error.
        */
       @Override
-      public void onInneractiveFailedAdRequest(InneractiveAdSpot adSpot,
-                                               InneractiveErrorCode errorCode) {
-        log("Failed loading interstitial with error: " + errorCode);
-        if (errorCode == InneractiveErrorCode.CONNECTION_ERROR) {
-          mLoadListener.onAdLoadFailed(MoPubErrorCode.NO_CONNECTION);
-        } else if (errorCode == InneractiveErrorCode.CONNECTION_TIMEOUT) {
-          mLoadListener.onAdLoadFailed(MoPubErrorCode.NETWORK_TIMEOUT);
-        } else if (errorCode == InneractiveErrorCode.NO_FILL) {
-          mLoadListener.onAdLoadFailed(MoPubErrorCode.NO_FILL);
-        } else {
-          mLoadListener.onAdLoadFailed(MoPubErrorCode.SERVER_ERROR);
-        }
+      public void onSpotFailed(@NonNull InneractiveErrorCode errorCode) {
+        log("Failed loading interstitial with error: ", errorCode);
+        FyberAdapterLog.trace(FyberAdapterLog.Event.LOAD_FAILED, FyberAdFormat.INTERSTITIAL, mSpotId, errorCode.ordinal());
+        mHedgedRequest = null;
+        FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.INTERSTITIAL, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+        mLoadListener.onAdLoadFailed(FyberErrorStats.toMoPubErrorCode(errorCode));
+      }
+
+      /**
+       * Called when no interstitial has loaded within the ad unit's load deadline
+       */
+      @Override
+      public void onDeadlineReached() {
+        log("Interstitial load deadline reached");
+        FyberAdapterLog.trace(FyberAdapterLog.Event.DEADLINE_REACHED, FyberAdFormat.INTERSTITIAL, mSpotId, -1);
+        mHedgedRequest = null;
+        FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.INTERSTITIAL, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+        mLoadListener.onAdLoadFailed(MoPubErrorCode.NETWORK_TIMEOUT);
+      }
+
+      /**
+       * Called instead of loading, while the ad unit's spots are backing off or the circuit breaker is open
+       * @param errorCode the error to report to Mopub
+       */
+      @Override
+      public void onLoadSkipped(@NonNull MoPubErrorCode errorCode) {
+        mLoadListener.onAdLoadFailed(errorCode);
       }
     });
+  }
+
+  /**
+   * Stops a load which is still in progress
+   */
+  private void cancelHedgedRequest() {
+    if (mHedgedRequest != null) {
+      mHedgedRequest.cancel();
+      mHedgedRequest = null;
+    }
+  }
+
+  /**
+   * @return the currently resumed Activity. If Activities are not tracked, the Activity given by Mopub if it is still alive.
+   * null if the app has no resumed Activity to show the ad on
+   */
+  @Nullable
+  private Activity resolveShowActivity() {
+    Activity activity = FyberActivityTracker.getForegroundActivity();
+    if (activity != null || FyberActivityTracker.isTracking()) {
+      return activity;
+    }
 
-    mInterstitialSpot.requestAd(request);
+    // Without lifecycle callbacks the resumed state is unknown
+    Object context = mContextRef.get();
+    return context instanceof Activity && FyberActivityTracker.isAlive((Activity) context) ? (Activity) context : null;
   }
 
   /**
@@ -321,6 +479,15 @@ public class FyberInterstitialForMopub extends BaseAd {
    * @param message
    */
   private void log(String message) {
-    MoPubLog.log(CUSTOM, LOG_TAG, message);
+    FyberAdapterLog.log(LOG_TAG, message);
+  }
+
+  /**
+   * MopubLog helper, which concatenates the value only if logging is enabled
+   * @param message
+   * @param value
+   */
+  private void log(String message, Object value) {
+    FyberAdapterLog.log(LOG_TAG, message, value);
   }
 }
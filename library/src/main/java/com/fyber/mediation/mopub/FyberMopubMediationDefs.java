@@ -35,4 +35,12 @@ public class FyberMopubMediationDefs {
 	public final static String REMOTE_KEY_SPOT_ID = "spotID";
 	public final static String REMOTE_KEY_APP_ID = "appID";
 	public final static String REMOTE_KEY_DEBUG = "debug";
+	/** Comma separated list of additional spot ids, which are requested in parallel to REMOTE_KEY_SPOT_ID */
+	public final static String REMOTE_KEY_SPOT_IDS = "spotIDs";
+
+	// Remote tuning params definitions. Optional, and can be set per ad unit in the remote mediation console
+	public final static String REMOTE_KEY_LOAD_TIMEOUT = "loadTimeoutMs";
+	public final static String REMOTE_KEY_PREFETCH_DEPTH = "prefetchDepth";
+	public final static String REMOTE_KEY_HEDGE_DELAY = "hedgeDelayMs";
+	public final static String REMOTE_KEY_DOUBLE_BUFFER = "doubleBuffer";
 }
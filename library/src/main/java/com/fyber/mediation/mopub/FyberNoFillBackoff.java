@@ -0,0 +1,127 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per spot negative cache, shared by all ad formats
+ * <br>After a spot returns no fill, requests for it are skipped for an exponentially growing, jittered backoff window.
+ * The backoff is reset as soon as the spot fills again
+ */
+final class FyberNoFillBackoff {
+    /** Backoff after the first no fill */
+    private final static long BASE_BACKOFF_MILLIS = 5 * 1000L;
+    /** Upper bound of the backoff window */
+    private final static long MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+
+    private final static ConcurrentHashMap<String, State> sStates = new ConcurrentHashMap<>();
+    private final static Random sRandom = new Random();
+
+    private FyberNoFillBackoff() {
+    }
+
+    /**
+     * @param spotId Fyber's spot id
+     * @return true if the spot is inside its backoff window, and should not be requested
+     */
+    static boolean isBackingOff(@NonNull String spotId) {
+        State state = sStates.get(spotId);
+        return state != null && SystemClock.elapsedRealtime() < state.mBackoffUntil;
+    }
+
+    /**
+     * @param spotIds Fyber's spot ids
+     * @return true if all of the given spots are inside their backoff window
+     */
+    static boolean isBackingOff(@NonNull String[] spotIds) {
+        for (String spotId : spotIds) {
+            if (!isBackingOff(spotId)) {
+                return false;
+            }
+        }
+        return spotIds.length > 0;
+    }
+
+    /**
+     * Called when a request for the spot has returned no fill. Extends the spot's backoff window
+     * @param spotId Fyber's spot id
+     */
+    static void onNoFill(@NonNull String spotId) {
+        State state = sStates.get(spotId);
+        if (state == null) {
+            State newState = new State();
+            state = sStates.putIfAbsent(spotId, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+
+        synchronized (state) {
+            state.mConsecutiveNoFills++;
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(state.mConsecutiveNoFills - 1, 16));
+            // Jitter over the upper half of the window, so that spots which failed together do not retry together
+            long jittered = backoff / 2 + (long) (sRandom.nextDouble() * (backoff / 2));
+            state.mBackoffUntil = SystemClock.elapsedRealtime() + jittered;
+        }
+    }
+
+    /**
+     * Called when a request for the spot has filled. Resets the spot's backoff
+     * @param spotId Fyber's spot id
+     */
+    static void onFill(@NonNull String spotId) {
+        sStates.remove(spotId);
+    }
+
+    /**
+     * Forgets the backoff of all spots. Used by tests, so that one test's no fills do not leak into the next
+     */
+    static void reset() {
+        sStates.clear();
+    }
+
+    /**
+     * Writes the spots which are currently tracked, and their remaining backoff
+     * @param writer the report's destination
+     */
+    static void dump(@NonNull PrintWriter writer) {
+        writer.println("Fyber adapter no fill backoff:");
+        long now = SystemClock.elapsedRealtime();
+        for (Map.Entry<String, State> entry : sStates.entrySet()) {
+            State state = entry.getValue();
+            synchronized (state) {
+                writer.println("  spot=" + entry.getKey() + " consecutiveNoFills=" + state.mConsecutiveNoFills +
+                                       " remainingMs=" + Math.max(0, state.mBackoffUntil - now));
+            }
+        }
+    }
+
+    /**
+     * Backoff state of a single spot
+     */
+    private static final class State {
+        int mConsecutiveNoFills;
+        volatile long mBackoffUntil;
+    }
+}
@@ -0,0 +1,103 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the CPU work of preparing an ad request off the main thread
+ * <br>The consent status and the targeting profile are resolved on a single background thread. The request itself is then sent
+ * from the main thread, so that the SDK calls, and all callbacks to Mopub's listeners, stay on the main looper.
+ * Continuations are posted rather than run inline, so that several slots which load together do not all run on the same frame
+ */
+final class FyberRequestPreparer {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberRequestPreparer";
+
+    /** Idle time after which the background thread is stopped */
+    private final static long KEEP_ALIVE_SECONDS = 30;
+
+    private final static Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final static ExecutorService sExecutor = createExecutor();
+
+    private FyberRequestPreparer() {
+    }
+
+    /**
+     * Prepares the request in the background, and then runs the given continuation on the main thread
+     * @param extras the ad unit's extras, used for resolving the targeting profile
+     * @param onPrepared sends the request. Always run on the main thread
+     */
+    static void prepare(final Map<String, String> extras, @NonNull final Runnable onPrepared) {
+        try {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    FyberAdapterConfiguration.prepareRequest(extras);
+                    sMainHandler.post(onPrepared);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            FyberAdapterLog.log(LOG_TAG, "request preparation was rejected. Preparing on the main thread");
+            sMainHandler.post(onPrepared);
+        }
+    }
+
+    /**
+     * Runs the given runnable on the main thread. Runs it immediately if called from the main thread
+     * @param runnable the runnable
+     */
+    static void runOnMainThread(@NonNull Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            sMainHandler.post(runnable);
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "FyberRequestPreparer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
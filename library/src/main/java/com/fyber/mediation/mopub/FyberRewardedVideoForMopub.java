@@ -17,35 +17,31 @@ package com.fyber.mediation.mopub;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.fyber.inneractive.sdk.external.InneractiveAdManager;
-import com.fyber.inneractive.sdk.external.InneractiveAdRequest;
 import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
-import com.fyber.inneractive.sdk.external.InneractiveAdSpotManager;
 import com.fyber.inneractive.sdk.external.InneractiveErrorCode;
 import com.fyber.inneractive.sdk.external.InneractiveFullScreenAdRewardedListener;
 import com.fyber.inneractive.sdk.external.InneractiveFullscreenAdEventsListener;
 import com.fyber.inneractive.sdk.external.InneractiveFullscreenUnitController;
 import com.fyber.inneractive.sdk.external.InneractiveFullscreenVideoContentController;
-import com.fyber.inneractive.sdk.external.InneractiveMediationName;
 import com.fyber.inneractive.sdk.external.InneractiveUnitController.AdDisplayError;
 import com.fyber.inneractive.sdk.external.OnFyberMarketplaceInitializedListener;
-import com.fyber.inneractive.sdk.external.VideoContentListener;
 import com.mopub.common.LifecycleListener;
 import com.mopub.common.MoPub;
 import com.mopub.common.MoPubReward;
-import com.mopub.common.logging.MoPubLog;
 import com.mopub.mobileads.AdData;
 import com.mopub.mobileads.BaseAd;
 import com.mopub.mobileads.MoPubErrorCode;
 
+import java.lang.ref.WeakReference;
 import java.util.Map;
 
-import static com.mopub.common.logging.MoPubLog.AdapterLogEvent.CUSTOM;
-
 /**
  * Implements Fyber's rewarded video Mopub's custom event class
  */
@@ -58,9 +54,75 @@ public class FyberRewardedVideoForMopub extends BaseAd {
     private String mSpotId = "";
 
     InneractiveAdSpot mRewardedSpot;
-    Activity mParentActivity;
+    /**
+     * The launcher Activity given by Mopub. Only weakly referenced, so that a long living ad does not retain it
+     */
+    WeakReference<Activity> mParentActivityRef = new WeakReference<>(null);
     private boolean mRewarded = false;
 
+    /**
+     * Life cycle timestamps, used for latency metrics
+     */
+    long mRequestTime;
+    long mLoadedTime;
+    long mShowTime;
+
+    /**
+     * The load which is currently in progress
+     */
+    FyberHedgedRequest mHedgedRequest;
+
+    /**
+     * Set once Mopub has invalidated this ad. Requests which are still being prepared are then dropped
+     */
+    boolean mInvalidated;
+
+    /**
+     * The ad unit's configuration of the current request, used for replacing a stale ad at show time
+     */
+    FyberSpotConfig mConfig;
+
+    /**
+     * Replaces the loaded ad shortly before it expires, while it is waiting to be shown
+     */
+    final FyberFullscreenRefresher mRefresher = new FyberFullscreenRefresher(FyberAdFormat.REWARDED, new FyberFullscreenRefresher.Listener() {
+        @Override
+        public void onSpotRefreshed(@NonNull InneractiveAdSpot spot) {
+            log("replaced the loaded ad before it has expired");
+            if (mRewardedSpot != null) {
+                FyberSpotPool.get().release(mRewardedSpot);
+            }
+            mRewardedSpot = spot;
+        }
+    });
+
+    /**
+     * Samples the video progress of the shown ad. Created once, and reused across shows
+     */
+    final FyberVideoProgressTracker mVideoProgressTracker = new FyberVideoProgressTracker(FyberAdFormat.REWARDED,
+            new FyberVideoProgressTracker.Listener() {
+        /**
+         * Called by the progress tracker once per sampled playback event
+         * <br>COMPLETE means that the video was played to the end, and is used for incentive flow
+         * <br>Note: This event does not indicate that the interstitial was closed
+         */
+        @Override
+        public void onVideoEvent(@NonNull FyberAdapterMetrics.VideoEvent event) {
+            if (event == FyberAdapterMetrics.VideoEvent.COMPLETE) {
+                mRewarded = true;
+                log("Got video content completed event. Do not report reward back just yet. wait for dismiss");
+                FyberAdapterLog.trace(FyberAdapterLog.Event.VIDEO_COMPLETED, FyberAdFormat.REWARDED, mSpotId, -1);
+            }
+        }
+
+        @Override
+        public void onVideoPlayerError() {
+            log("Got video content play error event");
+            FyberAdapterLog.trace(FyberAdapterLog.Event.VIDEO_ERROR, FyberAdFormat.REWARDED, mSpotId, -1);
+            mInteractionListener.onAdFailed(MoPubErrorCode.VIDEO_PLAYBACK_ERROR);
+        }
+    });
+
     @Override
     protected LifecycleListener getLifecycleListener() {
         return null;
@@ -73,53 +135,83 @@ public class FyberRewardedVideoForMopub extends BaseAd {
 
     @Override
     protected boolean checkAndInitializeSdk(@NonNull Activity launcherActivity, @NonNull AdData adData) throws Exception {
-        mParentActivity = launcherActivity;
+        mParentActivityRef = new WeakReference<>(launcherActivity);
+        FyberActivityTracker.init(launcherActivity);
+        FyberActivityTracker.watch(LOG_TAG, launcherActivity);
         return false;
     }
 
     @Override
     protected void load(@NonNull Context context, @NonNull AdData adData) throws Exception {
         log("load rewarded requested");
+        FyberAdapterLog.trace(FyberAdapterLog.Event.LOAD_REQUESTED, FyberAdFormat.REWARDED, null, -1);
+
+        FyberActivityTracker.init(context);
 
         // Set variables from MoPub console.
         final Map<String, String> extras = adData.getExtras();
-        final String appId = extras == null ? null : extras.get(FyberMopubMediationDefs.REMOTE_KEY_APP_ID);
-        final String spotId = extras == null ? null : extras.get(FyberMopubMediationDefs.REMOTE_KEY_SPOT_ID);
+        final FyberSpotConfig config = FyberSpotConfig.from(adData);
 
-        if (TextUtils.isEmpty(spotId)) {
+        if (!config.hasSpotId()) {
             log("No spotID defined for ad unit. Cannot load rewarded");
             mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
             return;
         }
 
-        mSpotId = spotId;
+        mSpotId = config.spotId;
+
+        if (config.prefetchDepth != FyberSpotConfig.NOT_SET) {
+            FyberAdInventoryCache.get().setDepth(mSpotId, config.prefetchDepth);
+        }
 
         // If we've received an appId for this unit, try initializing the Fyber Marketplace SDK, if it was not already initialized
-        if (!TextUtils.isEmpty(appId)) {
-            FyberAdapterConfiguration.initializeFyberMarketplace(context.getApplicationContext(), appId, extras.containsKey(
-                    FyberMopubMediationDefs.REMOTE_KEY_DEBUG),
-                    new FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener() {
-                        @Override public void onFyberAdapterConfigurationResolved(
-                                OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
-                            //note - we try to load ads when "FAILED" because an ad request will re-attempt to initialize the relevant parts of the SDK.
-                            if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY || status == OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED) {
-                                requestRewarded(extras);
-                            } else {
-                                mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
-                            }
-                        }
-                    });
+        if (config.hasAppId()) {
+            FyberAdapterConfiguration.initializeFyberMarketplace(context.getApplicationContext(), config.appId, config.debug,
+                    createInitListener(config, extras));
         } else if (InneractiveAdManager.wasInitialized()) {
-            requestRewarded(extras);
-        } else {
+            prepareAndRequestRewarded(config, extras);
+        } else if (!FyberAdapterConfiguration.initializePendingIfNeeded(createInitListener(config, extras))) {
+            // The SDK was neither initialized, nor scheduled for initialization
             mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
         }
     }
 
+    /**
+     * Creates a listener which waits for the Fyber Marketplace SDK initialization, and then requests the rewarded ad
+     * @param config the ad unit's configuration
+     * @param extras
+     */
+    private FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener createInitListener(final FyberSpotConfig config,
+                                                                                                   final Map<String, String> extras) {
+        final long initStartTime = FyberAdapterMetrics.now();
+        return new FyberAdapterConfiguration.OnFyberAdapterConfigurationResolvedListener() {
+            @Override public void onFyberAdapterConfigurationResolved(
+                    OnFyberMarketplaceInitializedListener.FyberInitStatus status) {
+                FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.REWARDED, FyberAdapterMetrics.Stage.INIT_WAIT, initStartTime);
+                //note - we try to load ads when "FAILED" because an ad request will re-attempt to initialize the relevant parts of the SDK.
+                if (status == OnFyberMarketplaceInitializedListener.FyberInitStatus.SUCCESSFULLY || status == OnFyberMarketplaceInitializedListener.FyberInitStatus.FAILED) {
+                    prepareAndRequestRewarded(config, extras);
+                } else {
+                    // The initialization callback may arrive on a background thread
+                    FyberRequestPreparer.runOnMainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
+                        }
+                    });
+                }
+            }
+        };
+    }
+
     @Override
     protected void onInvalidate() {
+        mInvalidated = true;
+        FyberAdapterLog.trace(FyberAdapterLog.Event.INVALIDATED, FyberAdFormat.REWARDED, mSpotId, -1);
+        cancelHedgedRequest();
+        mRefresher.cancel();
         if (mRewardedSpot != null) {
-            mRewardedSpot.destroy();
+            FyberSpotPool.get().release(mRewardedSpot);
             mRewardedSpot = null;
         }
     }
@@ -127,8 +219,32 @@ public class FyberRewardedVideoForMopub extends BaseAd {
     @Override
     public void show() {
         log("showVideo called for rewarded");
+        FyberAdapterLog.trace(FyberAdapterLog.Event.SHOW, FyberAdFormat.REWARDED, mSpotId, -1);
+        mRefresher.cancel();
+        // The loaded ad may have gone stale while waiting. Fall back to a fresh cached ad, rather than failing with EXPIRED
+        if ((mRewardedSpot == null || !mRewardedSpot.isReady()) && mConfig != null) {
+            InneractiveAdSpot cachedSpot = FyberAdInventoryCache.get().poll(mConfig.spotIds);
+            if (cachedSpot != null) {
+                log("loaded ad has expired. Showing a cached ad instead");
+                if (mRewardedSpot != null) {
+                    FyberSpotPool.get().release(mRewardedSpot);
+                }
+                mRewardedSpot = cachedSpot;
+            }
+        }
+
         // check if the ad is ready
         if (mRewardedSpot != null && mRewardedSpot.isReady()) {
+            // Show on the current foreground Activity. The Activity of the load request may be long gone by now
+            Activity activity = resolveShowActivity();
+            if (activity == null) {
+                log("No resumed activity to show the ad on");
+                mInteractionListener.onAdFailed(MoPubErrorCode.FULLSCREEN_SHOW_ERROR);
+                return;
+            }
+
+            FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.REWARDED, FyberAdapterMetrics.Stage.LOAD_TO_SHOW, mLoadedTime);
+            mShowTime = FyberAdapterMetrics.now();
 
             InneractiveFullscreenUnitController fullscreenUnitController = (InneractiveFullscreenUnitController)mRewardedSpot.getSelectedUnitController();
             fullscreenUnitController.setEventsListener(new InneractiveFullscreenAdEventsListener() {
@@ -140,6 +256,7 @@ public class FyberRewardedVideoForMopub extends BaseAd {
                 @Override
                 public void onAdDismissed(InneractiveAdSpot adSpot) {
                     log("onAdDismissed");
+                    FyberAdapterLog.trace(FyberAdapterLog.Event.DISMISSED, FyberAdFormat.REWARDED, mSpotId, -1);
 
                     // We fire the reward when the video completes
                     mInteractionListener.onAdComplete(mRewarded ? MoPubReward.success(MoPubReward.NO_REWARD_LABEL, MoPubReward.DEFAULT_REWARD_AMOUNT) : MoPubReward.failure());
@@ -153,6 +270,8 @@ public class FyberRewardedVideoForMopub extends BaseAd {
                 @Override
                 public void onAdImpression(InneractiveAdSpot adSpot) {
                     log("onAdImpression");
+                    FyberAdapterLog.trace(FyberAdapterLog.Event.IMPRESSION, FyberAdFormat.REWARDED, mSpotId, -1);
+                    FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.REWARDED, FyberAdapterMetrics.Stage.SHOW_TO_IMPRESSION, mShowTime);
                     mInteractionListener.onAdShown();
                     mInteractionListener.onAdImpression();
                 }
@@ -165,6 +284,7 @@ public class FyberRewardedVideoForMopub extends BaseAd {
                 public void onAdClicked(InneractiveAdSpot adSpot) {
                     mInteractionListener.onAdClicked();
                     log("onAdClicked");
+                    FyberAdapterLog.trace(FyberAdapterLog.Event.CLICK, FyberAdFormat.REWARDED, mSpotId, -1);
                 }
 
                 /**
@@ -183,7 +303,8 @@ public class FyberRewardedVideoForMopub extends BaseAd {
                  */
                 @Override
                 public void onAdEnteredErrorState(InneractiveAdSpot adSpot, AdDisplayError error) {
-                    log("onAdEnteredErrorState - " + error.getMessage());
+                    log("onAdEnteredErrorState - ", error.getMessage());
+                    FyberAdapterLog.trace(FyberAdapterLog.Event.ERROR_STATE, FyberAdFormat.REWARDED, mSpotId, -1);
                 }
 
                 /**
@@ -196,31 +317,10 @@ public class FyberRewardedVideoForMopub extends BaseAd {
                 }
             });
 
-            // Add video content controller, for controlling video ads
+            // Add video content controller, for controlling video ads. Raw progress ticks are sampled by the reused progress tracker
+            mVideoProgressTracker.reset(mSpotId, mShowTime);
             InneractiveFullscreenVideoContentController videoContentController = new InneractiveFullscreenVideoContentController();
-            videoContentController.setEventsListener(new VideoContentListener() {
-                @Override
-                public void onProgress(int totalDurationInMsec, int positionInMsec) {
-                        // Nothing to do here
-                }
-
-                /**
-                 * Called by Fyber Marketplace when an Interstitial video ad was played to the end
-                 * <br>Can be used for incentive flow
-                 * <br>Note: This event does not indicate that the interstitial was closed
-                 */
-                @Override
-                public void onCompleted() {
-                    mRewarded = true;
-                    log("Got video content completed event. Do not report reward back just yet. wait for dismiss");
-                }
-
-                @Override
-                public void onPlayerError() {
-                    log("Got video content play error event");
-                    mInteractionListener.onAdFailed(MoPubErrorCode.VIDEO_PLAYBACK_ERROR);
-                }
-            });
+            videoContentController.setEventsListener(mVideoProgressTracker);
 
             fullscreenUnitController.setRewardedListener(new InneractiveFullScreenAdRewardedListener() {
                 @Override
@@ -232,70 +332,138 @@ public class FyberRewardedVideoForMopub extends BaseAd {
             // Now add the content controller to the unit controller
             fullscreenUnitController.addContentController(videoContentController);
 
-            fullscreenUnitController.show(mParentActivity);
+            fullscreenUnitController.show(activity);
         } else {
             mInteractionListener.onAdFailed(MoPubErrorCode.EXPIRED);
             log("The rewarded ad is not ready yet.");
         }
     }
 
-    private void requestRewarded(Map<String, String> localExtras) {
+    /**
+     * Prepares the request in the background, and then requests the rewarded ad from the main thread
+     */
+    private void prepareAndRequestRewarded(final FyberSpotConfig config, final Map<String, String> extras) {
+        FyberRequestPreparer.prepare(extras, new Runnable() {
+            @Override
+            public void run() {
+                if (!mInvalidated) {
+                    requestRewarded(config, extras);
+                }
+            }
+        });
+    }
 
-        if (mParentActivity == null || TextUtils.isEmpty(mSpotId)) {
+    private void requestRewarded(final FyberSpotConfig config, final Map<String, String> localExtras) {
+
+        // The ad may be shown later on another Activity, but loading requires the launcher Activity given by Mopub
+        if (!FyberActivityTracker.isAlive(mParentActivityRef.get()) || TextUtils.isEmpty(mSpotId)) {
             mLoadListener.onAdLoadFailed(MoPubErrorCode.ADAPTER_CONFIGURATION_ERROR);
+            return;
         }
 
         FyberAdapterConfiguration.updateGdprConsentStatusFromMopub();
 
+        mConfig = config;
+        cancelHedgedRequest();
+        mRefresher.cancel();
         if (mRewardedSpot != null) {
-            mRewardedSpot.destroy();
+            FyberSpotPool.get().release(mRewardedSpot);
+            mRewardedSpot = null;
         }
 
-        mRewardedSpot = InneractiveAdSpotManager.get().createSpot();
-        // Set your mediation name and version
-        mRewardedSpot.setMediationName(InneractiveMediationName.MOPUB);
-        mRewardedSpot.setMediationVersion(MoPub.SDK_VERSION);
-
-        InneractiveFullscreenUnitController fullscreenUnitController = new InneractiveFullscreenUnitController();
-        mRewardedSpot.addUnitController(fullscreenUnitController);
-
-        InneractiveAdRequest request = new InneractiveAdRequest(mSpotId);
-        FyberAdapterConfiguration.updateRequestFromExtras(request, localExtras);
+        // Complete the load from memory, if a prefetched spot is available
+        FyberAdInventoryCache.CachedSpot cachedSpot = FyberAdInventoryCache.get().pollEntry(config.spotIds);
+        if (cachedSpot != null) {
+            log("on ad loaded from inventory cache");
+            FyberAdapterLog.trace(FyberAdapterLog.Event.LOADED_FROM_CACHE, FyberAdFormat.REWARDED, mSpotId, -1);
+            mRewardedSpot = cachedSpot.spot;
+            mLoadedTime = FyberAdapterMetrics.now();
+            mRefresher.schedule(mSpotId, localExtras, config, cachedSpot.loadTime);
+            mLoadListener.onAdLoaded();
+            FyberAdInventoryCache.get().refill(FyberAdFormat.REWARDED, mSpotId, localExtras);
+            return;
+        }
 
         // Load ad
-        mRewardedSpot.setRequestListener(new InneractiveAdSpot.RequestListener() {
+        mRequestTime = FyberAdapterMetrics.now();
+        mHedgedRequest = FyberHedgedRequest.startFor(FyberAdFormat.REWARDED, mSpotId, localExtras, config, new FyberHedgedRequest.Listener() {
 
             /**
              * Called by Fyber Marketplace when an interstitial is ready for display
-             * @param adSpot Spot object
+             * @param spot Spot object
              */
             @Override
-            public void onInneractiveSuccessfulAdRequest(InneractiveAdSpot adSpot) {
-                log("on ad loaded successfully");
+            public void onSpotLoaded(@NonNull InneractiveAdSpot spot, @NonNull String loadedSpotId) {
+                log("on ad loaded successfully from spot ", loadedSpotId);
+                FyberAdapterLog.trace(FyberAdapterLog.Event.LOADED, FyberAdFormat.REWARDED, loadedSpotId, -1);
+                mHedgedRequest = null;
+                mRewardedSpot = spot;
+                FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.REWARDED, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+                mLoadedTime = FyberAdapterMetrics.now();
+                mRefresher.schedule(mSpotId, localExtras, config, SystemClock.elapsedRealtime());
                 mLoadListener.onAdLoaded();
             }
 
             /**
              * Called by Fyber Marketplace when an interstitial fails loading
-             * @param adSpot Spot object
              * @param errorCode the failure's error.
              */
             @Override
-            public void onInneractiveFailedAdRequest(InneractiveAdSpot adSpot, InneractiveErrorCode errorCode) {
-                log("Failed loading rewarded with error: " + errorCode);
-                if (errorCode == InneractiveErrorCode.CONNECTION_ERROR) {
-                    mLoadListener.onAdLoadFailed(MoPubErrorCode.NO_CONNECTION);
-                } else if  (errorCode == InneractiveErrorCode.CONNECTION_TIMEOUT) {
-                    mLoadListener.onAdLoadFailed(MoPubErrorCode.NETWORK_TIMEOUT);
-                } else if (errorCode == InneractiveErrorCode.NO_FILL) {
-                    mLoadListener.onAdLoadFailed(MoPubErrorCode.NO_FILL);
-                } else {
-                    mLoadListener.onAdLoadFailed(MoPubErrorCode.SERVER_ERROR);
-                }
+            public void onSpotFailed(@NonNull InneractiveErrorCode errorCode) {
+                log("Failed loading rewarded with error: ", errorCode);
+                FyberAdapterLog.trace(FyberAdapterLog.Event.LOAD_FAILED, FyberAdFormat.REWARDED, mSpotId, errorCode.ordinal());
+                mHedgedRequest = null;
+                FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.REWARDED, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+                mLoadListener.onAdLoadFailed(FyberErrorStats.toMoPubErrorCode(errorCode));
+            }
+
+            /**
+             * Called when no rewarded ad has loaded within the ad unit's load deadline
+             */
+            @Override
+            public void onDeadlineReached() {
+                log("Rewarded load deadline reached");
+                FyberAdapterLog.trace(FyberAdapterLog.Event.DEADLINE_REACHED, FyberAdFormat.REWARDED, mSpotId, -1);
+                mHedgedRequest = null;
+                FyberAdapterMetrics.recordSince(mSpotId, FyberAdFormat.REWARDED, FyberAdapterMetrics.Stage.REQUEST, mRequestTime);
+                mLoadListener.onAdLoadFailed(MoPubErrorCode.NETWORK_TIMEOUT);
+            }
+
+            /**
+             * Called instead of loading, while the ad unit's spots are backing off or the circuit breaker is open
+             * @param errorCode the error to report to Mopub
+             */
+            @Override
+            public void onLoadSkipped(@NonNull MoPubErrorCode errorCode) {
+                mLoadListener.onAdLoadFailed(errorCode);
             }
         });
+    }
 
-        mRewardedSpot.requestAd(request);
+    /**
+     * Stops a load which is still in progress
+     */
+    private void cancelHedgedRequest() {
+        if (mHedgedRequest != null) {
+            mHedgedRequest.cancel();
+            mHedgedRequest = null;
+        }
+    }
+
+    /**
+     * @return the currently resumed Activity. If Activities are not tracked, the Activity given by Mopub if it is still alive.
+     * null if the app has no resumed Activity to show the ad on
+     */
+    @Nullable
+    private Activity resolveShowActivity() {
+        Activity activity = FyberActivityTracker.getForegroundActivity();
+        if (activity != null || FyberActivityTracker.isTracking()) {
+            return activity;
+        }
+
+        // Without lifecycle callbacks the resumed state is unknown
+        Object context = mParentActivityRef.get();
+        return context instanceof Activity && FyberActivityTracker.isAlive((Activity) context) ? (Activity) context : null;
     }
 
     /**
@@ -303,6 +471,15 @@ public class FyberRewardedVideoForMopub extends BaseAd {
      * @param message
      */
     private void log(String message) {
-        MoPubLog.log(CUSTOM, LOG_TAG, message);
+        FyberAdapterLog.log(LOG_TAG, message);
+    }
+
+    /**
+     * MopubLog helper, which concatenates the value only if logging is enabled
+     * @param message
+     * @param value
+     */
+    private void log(String message, Object value) {
+        FyberAdapterLog.log(LOG_TAG, message, value);
     }
 }
@@ -0,0 +1,187 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.mopub.mobileads.AdData;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable configuration of a Mopub ad unit, as defined by the remote extras in the Mopub console
+ * <br>Configurations are parsed once per ad unit, and reused for as long as the remote keys they are parsed from do not change
+ */
+final class FyberSpotConfig {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberSpotConfig";
+
+    /** Value of numeric keys which were not defined in the Mopub console */
+    final static int NOT_SET = -1;
+
+    /** The remote keys a configuration is parsed from. Changes to any other extras do not invalidate a cached configuration */
+    private final static String[] PARSED_KEYS = {
+            FyberMopubMediationDefs.REMOTE_KEY_APP_ID,
+            FyberMopubMediationDefs.REMOTE_KEY_SPOT_ID,
+            FyberMopubMediationDefs.REMOTE_KEY_SPOT_IDS,
+            FyberMopubMediationDefs.REMOTE_KEY_DEBUG,
+            FyberMopubMediationDefs.REMOTE_KEY_LOAD_TIMEOUT,
+            FyberMopubMediationDefs.REMOTE_KEY_PREFETCH_DEPTH,
+            FyberMopubMediationDefs.REMOTE_KEY_HEDGE_DELAY,
+            FyberMopubMediationDefs.REMOTE_KEY_DOUBLE_BUFFER
+    };
+
+    private final static Map<String, FyberSpotConfig> sConfigs = new ConcurrentHashMap<>();
+
+    /** The values of {@link #PARSED_KEYS} this configuration was parsed from */
+    private final String[] mSourceValues;
+    /** Which of {@link #PARSED_KEYS} were defined, as some of them are flags with no value */
+    private final boolean[] mSourceDefined;
+
+    @Nullable
+    final String appId;
+    @Nullable
+    final String spotId;
+    /** All spot ids which are raced for this ad unit. Starts with spotId, if defined */
+    @NonNull
+    final String[] spotIds;
+    final boolean debug;
+    /** Load deadline in milliseconds, or {@link #NOT_SET} */
+    final int loadTimeoutMillis;
+    /** Number of prefetched fullscreen ads for this spot, or {@link #NOT_SET} */
+    final int prefetchDepth;
+    /** Delay in milliseconds before a backup request is sent, or {@link #NOT_SET} */
+    final int hedgeDelayMillis;
+    /** Load the next banner while the current one is on screen */
+    final boolean doubleBuffer;
+
+    private FyberSpotConfig(@NonNull Map<String, String> extras) {
+        mSourceValues = new String[PARSED_KEYS.length];
+        mSourceDefined = new boolean[PARSED_KEYS.length];
+        for (int i = 0; i < PARSED_KEYS.length; i++) {
+            mSourceValues[i] = extras.get(PARSED_KEYS[i]);
+            mSourceDefined[i] = mSourceValues[i] != null || extras.containsKey(PARSED_KEYS[i]);
+        }
+        appId = extras.get(FyberMopubMediationDefs.REMOTE_KEY_APP_ID);
+        spotId = extras.get(FyberMopubMediationDefs.REMOTE_KEY_SPOT_ID);
+        spotIds = parseSpotIds(spotId, extras.get(FyberMopubMediationDefs.REMOTE_KEY_SPOT_IDS));
+        debug = extras.containsKey(FyberMopubMediationDefs.REMOTE_KEY_DEBUG);
+        loadTimeoutMillis = parseInt(extras, FyberMopubMediationDefs.REMOTE_KEY_LOAD_TIMEOUT);
+        prefetchDepth = parseInt(extras, FyberMopubMediationDefs.REMOTE_KEY_PREFETCH_DEPTH);
+        hedgeDelayMillis = parseInt(extras, FyberMopubMediationDefs.REMOTE_KEY_HEDGE_DELAY);
+        doubleBuffer = extras.containsKey(FyberMopubMediationDefs.REMOTE_KEY_DOUBLE_BUFFER);
+    }
+
+    /**
+     * Returns the configuration of the given ad unit
+     * @param adData Mopub's ad data
+     * @return a cached configuration, if the parsed remote keys have not changed since it was parsed. A new one otherwise
+     */
+    @NonNull
+    static FyberSpotConfig from(@NonNull AdData adData) {
+        Map<String, String> extras = adData.getExtras();
+        if (extras == null) {
+            extras = Collections.emptyMap();
+        }
+
+        String adUnit = adData.getAdUnit();
+        if (adUnit == null) {
+            return new FyberSpotConfig(extras);
+        }
+
+        FyberSpotConfig config = sConfigs.get(adUnit);
+        if (config == null || !config.isParsedFrom(extras)) {
+            config = new FyberSpotConfig(extras);
+            sConfigs.put(adUnit, config);
+        }
+        return config;
+    }
+
+    /**
+     * Compares only the parsed remote keys, so that the check does not depend on the size of the ad unit's extras
+     * @return true if the given extras define the same values for all parsed remote keys
+     */
+    private boolean isParsedFrom(@NonNull Map<String, String> extras) {
+        for (int i = 0; i < PARSED_KEYS.length; i++) {
+            String value = extras.get(PARSED_KEYS[i]);
+            if (!TextUtils.equals(mSourceValues[i], value) ||
+                    mSourceDefined[i] != (value != null || extras.containsKey(PARSED_KEYS[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean hasAppId() {
+        return !TextUtils.isEmpty(appId);
+    }
+
+    boolean hasSpotId() {
+        return !TextUtils.isEmpty(spotId);
+    }
+
+    /**
+     * @return the primary spot id, followed by the distinct additional spot ids
+     */
+    private static String[] parseSpotIds(String spotId, String additionalSpotIds) {
+        Set<String> spotIds = new LinkedHashSet<>();
+        if (!TextUtils.isEmpty(spotId)) {
+            spotIds.add(spotId);
+        }
+
+        if (!TextUtils.isEmpty(additionalSpotIds)) {
+            for (String additionalSpotId : additionalSpotIds.split(",")) {
+                String trimmed = additionalSpotId.trim();
+                if (!trimmed.isEmpty()) {
+                    spotIds.add(trimmed);
+                }
+            }
+        }
+        return spotIds.toArray(new String[spotIds.size()]);
+    }
+
+    private static int parseInt(Map<String, String> extras, String key) {
+        String value = extras.get(key);
+        if (TextUtils.isEmpty(value)) {
+            return NOT_SET;
+        }
+
+        try {
+            int result = Integer.parseInt(value.trim());
+            return result < 0 ? NOT_SET : result;
+        } catch (NumberFormatException e) {
+            if (FyberAdapterLog.isLoggable()) {
+                log("Invalid value for remote key " + key + " - " + value);
+            }
+            return NOT_SET;
+        }
+    }
+
+    /**
+     * MopubLog helper
+     * @param message
+     */
+    private static void log(String message) {
+        FyberAdapterLog.log(LOG_TAG, message);
+    }
+}
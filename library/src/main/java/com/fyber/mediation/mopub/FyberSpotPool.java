@@ -0,0 +1,145 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdSpot;
+import com.fyber.inneractive.sdk.external.InneractiveAdSpotManager;
+import com.fyber.inneractive.sdk.external.InneractiveMediationName;
+import com.mopub.common.MoPub;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Manages the life cycle of the spots used by the custom adapter classes
+ * <br>Spots whose request has failed never received any ad content, and are reused for the next request of the same format,
+ * together with their unit controller. All other spots are destroyed asynchronously, off the critical path of the next request
+ */
+final class FyberSpotPool {
+    /** Maximal number of idle spots kept per format */
+    private final static int MAX_IDLE_SPOTS = 2;
+
+    /**
+     * Creates the spots of the pool
+     */
+    interface SpotFactory {
+        @NonNull
+        InneractiveAdSpot createSpot();
+    }
+
+    /** Creates the spots through Fyber's SDK */
+    private final static SpotFactory SDK_SPOT_FACTORY = new SpotFactory() {
+        @NonNull
+        @Override
+        public InneractiveAdSpot createSpot() {
+            return InneractiveAdSpotManager.get().createSpot();
+        }
+    };
+
+    private final static FyberSpotPool sInstance = new FyberSpotPool();
+
+    private final Map<FyberAdFormat, ArrayDeque<InneractiveAdSpot>> mIdleSpots = new EnumMap<>(FyberAdFormat.class);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile SpotFactory mSpotFactory = SDK_SPOT_FACTORY;
+
+    static FyberSpotPool get() {
+        return sInstance;
+    }
+
+    private FyberSpotPool() {
+        for (FyberAdFormat format : FyberAdFormat.values()) {
+            mIdleSpots.put(format, new ArrayDeque<InneractiveAdSpot>(MAX_IDLE_SPOTS));
+        }
+    }
+
+    /**
+     * Returns a spot which is ready for a new request. The spot has a unit controller of the given format,
+     * and Mopub's mediation name and version already set
+     * @param format the requested ad format
+     * @return a recycled spot if one is available, or a newly created one
+     */
+    @NonNull
+    InneractiveAdSpot acquire(@NonNull FyberAdFormat format) {
+        InneractiveAdSpot spot;
+        synchronized (this) {
+            spot = mIdleSpots.get(format).pollFirst();
+        }
+
+        if (spot == null) {
+            spot = mSpotFactory.createSpot();
+            // Set your mediation name and version
+            spot.setMediationName(InneractiveMediationName.MOPUB);
+            spot.setMediationVersion(MoPub.SDK_VERSION);
+            spot.addUnitController(format.createUnitController());
+        }
+        return spot;
+    }
+
+    /**
+     * Replaces the factory of new spots, and destroys the idle spots created by the previous one. Used by the benchmarks and the load simulation
+     * @param spotFactory the new factory, or null in order to restore Fyber's SDK factory
+     */
+    void setSpotFactory(SpotFactory spotFactory) {
+        mSpotFactory = spotFactory != null ? spotFactory : SDK_SPOT_FACTORY;
+
+        synchronized (this) {
+            for (ArrayDeque<InneractiveAdSpot> idleSpots : mIdleSpots.values()) {
+                InneractiveAdSpot spot;
+                while ((spot = idleSpots.pollFirst()) != null) {
+                    release(spot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a spot whose ad request has failed, so that it can be used for the next request of the same format
+     * @param format the spot's ad format
+     * @param spot a spot with no ad content, and no request in progress
+     */
+    void recycle(@NonNull FyberAdFormat format, @NonNull InneractiveAdSpot spot) {
+        // Drop the reference to the previous owner
+        spot.setRequestListener(null);
+
+        synchronized (this) {
+            ArrayDeque<InneractiveAdSpot> idleSpots = mIdleSpots.get(format);
+            if (idleSpots.size() < MAX_IDLE_SPOTS) {
+                idleSpots.addLast(spot);
+                return;
+            }
+        }
+        release(spot);
+    }
+
+    /**
+     * Destroys a spot which is no longer needed. Destruction is posted to the main thread, so that it does not delay the caller
+     * @param spot the spot to destroy
+     */
+    void release(@NonNull final InneractiveAdSpot spot) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                spot.destroy();
+            }
+        });
+    }
+}
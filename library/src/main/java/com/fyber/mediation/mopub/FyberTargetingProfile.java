@@ -0,0 +1,186 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdRequest;
+import com.fyber.inneractive.sdk.external.InneractiveUserConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable targeting parameters, parsed from Mopub's local extras
+ * <br>Profiles are cached by the content of the targeting related extras, so that requests with the same targeting
+ * are populated without parsing the extras again
+ */
+final class FyberTargetingProfile {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberTargetingProfile";
+
+    /** Publishers rarely use more than a few distinct targeting configurations. Guards against unbounded growth */
+    private final static int MAX_CACHED_PROFILES = 16;
+
+    private final static Map<Key, FyberTargetingProfile> sProfiles = new ConcurrentHashMap<>();
+    /** The last resolved profile. Allows resolving repeated targeting without any allocation */
+    private static volatile FyberTargetingProfile sLastProfile;
+
+    private final Key mKey;
+    private final String mKeywords;
+    private final InneractiveUserConfig mUserConfig;
+
+    private FyberTargetingProfile(Key key) {
+        mKey = key;
+        mKeywords = TextUtils.isEmpty(key.keywords) ? null : key.keywords;
+
+        InneractiveUserConfig.Gender gender = null;
+        if (FyberMopubMediationDefs.GENDER_MALE.equals(key.gender)) {
+            gender = InneractiveUserConfig.Gender.MALE;
+        } else if (FyberMopubMediationDefs.GENDER_FEMALE.equals(key.gender)) {
+            gender = InneractiveUserConfig.Gender.FEMALE;
+        }
+
+        int age = 0;
+        if (key.age != null) {
+            try {
+                age = Integer.parseInt(key.age);
+            } catch (NumberFormatException e) {
+                log("local extra contains Invalid Age");
+            }
+        }
+
+        // Populate user configuration
+        InneractiveUserConfig userConfig = new InneractiveUserConfig()
+                .setZipCode(key.zipCode);
+
+        if (gender != null) {
+            userConfig.setGender(gender);
+        }
+
+        if (InneractiveUserConfig.ageIsValid(age)) {
+            userConfig.setAge(age);
+        }
+
+        mUserConfig = userConfig;
+    }
+
+    /**
+     * Returns the targeting profile matching the given local extras
+     * @param extras Mopub's local extras
+     * @return a cached, or newly built profile
+     */
+    @NonNull
+    static FyberTargetingProfile of(@NonNull Map<String, String> extras) {
+        FyberTargetingProfile lastProfile = sLastProfile;
+        if (lastProfile != null && lastProfile.mKey.matches(extras)) {
+            return lastProfile;
+        }
+
+        Key key = new Key(extras);
+        FyberTargetingProfile profile = sProfiles.get(key);
+        if (profile == null) {
+            if (sProfiles.size() >= MAX_CACHED_PROFILES) {
+                sProfiles.clear();
+            }
+            profile = new FyberTargetingProfile(key);
+            sProfiles.put(key, profile);
+        }
+
+        sLastProfile = profile;
+        return profile;
+    }
+
+    /**
+     * Sets the targeting parameters on the given ad request
+     * @param request Fyber's ad request
+     */
+    void applyTo(@NonNull InneractiveAdRequest request) {
+        // Set optional parameters for better targeting.
+        request.setUserParams(mUserConfig);
+
+        // Populate keywords
+        if (mKeywords != null) {
+            request.setKeywords(mKeywords);
+        }
+    }
+
+    /**
+     * The raw values of the targeting related local extras
+     */
+    private static final class Key {
+        final String keywords;
+        final String age;
+        final String zipCode;
+        final String gender;
+        private final int mHashCode;
+
+        Key(Map<String, String> extras) {
+            keywords = extras.get(FyberMopubMediationDefs.KEY_KEYWORDS);
+            age = extras.get(FyberMopubMediationDefs.KEY_AGE);
+            zipCode = extras.get(FyberMopubMediationDefs.KEY_ZIPCODE);
+            gender = extras.get(FyberMopubMediationDefs.KEY_GENDER);
+
+            int hashCode = hashOf(keywords);
+            hashCode = 31 * hashCode + hashOf(age);
+            hashCode = 31 * hashCode + hashOf(zipCode);
+            hashCode = 31 * hashCode + hashOf(gender);
+            mHashCode = hashCode;
+        }
+
+        boolean matches(Map<String, String> extras) {
+            return TextUtils.equals(keywords, extras.get(FyberMopubMediationDefs.KEY_KEYWORDS))
+                    && TextUtils.equals(age, extras.get(FyberMopubMediationDefs.KEY_AGE))
+                    && TextUtils.equals(zipCode, extras.get(FyberMopubMediationDefs.KEY_ZIPCODE))
+                    && TextUtils.equals(gender, extras.get(FyberMopubMediationDefs.KEY_GENDER));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && TextUtils.equals(keywords, other.keywords)
+                    && TextUtils.equals(age, other.age)
+                    && TextUtils.equals(zipCode, other.zipCode)
+                    && TextUtils.equals(gender, other.gender);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private static int hashOf(String value) {
+            return value == null ? 0 : value.hashCode();
+        }
+    }
+
+    /**
+     * MopubLog helper
+     * @param message
+     */
+    private static void log(String message) {
+        FyberAdapterLog.log(LOG_TAG, message);
+    }
+}
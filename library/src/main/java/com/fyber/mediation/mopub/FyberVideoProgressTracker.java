@@ -0,0 +1,138 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import androidx.annotation.NonNull;
+
+import com.fyber.inneractive.sdk.external.VideoContentListener;
+import com.fyber.mediation.mopub.FyberAdapterMetrics.VideoEvent;
+
+/**
+ * Turns the raw video progress ticks of a fullscreen ad into sampled playback events
+ * <br>Each tick only compares the position against the next quartile threshold, and the adapter is called once per event.
+ * The events are also forwarded to the subscribers registered with {@link FyberAdapterMetrics#setVideoEventListener}.
+ * The tracker also measures the playback startup delay, and stalls in which the position did not advance, into {@link FyberAdapterMetrics}.
+ * <br>A tracker instance is reused by its adapter across shows. Call {@link #reset} before each show
+ */
+final class FyberVideoProgressTracker implements VideoContentListener {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberVideoProgressTracker";
+
+    /** Position gaps shorter than this are not considered as stalls */
+    private final static long MIN_STALL_MILLIS = 500;
+
+    private final static VideoEvent[] EVENTS = VideoEvent.values();
+
+    /**
+     * Receives the sampled playback events
+     */
+    interface Listener {
+        void onVideoEvent(@NonNull VideoEvent event);
+
+        void onVideoPlayerError();
+    }
+
+    private final FyberAdFormat mFormat;
+    private final Listener mListener;
+
+    private String mSpotId;
+    /** The index of the next event to deliver */
+    private int mNextEvent;
+    private long mShowTime;
+    private int mLastPosition;
+    /** The time in which the position has last advanced */
+    private long mLastAdvanceTime;
+    private boolean mStalled;
+
+    /**
+     * @param format the ad format, used for the recorded metrics
+     * @param listener receives the sampled events
+     */
+    FyberVideoProgressTracker(@NonNull FyberAdFormat format, @NonNull Listener listener) {
+        mFormat = format;
+        mListener = listener;
+    }
+
+    /**
+     * Prepares the tracker for a new playback
+     * @param spotId Fyber's spot id of the shown ad
+     * @param showTime the time the show was requested, as returned by {@link FyberAdapterMetrics#now()}
+     */
+    void reset(String spotId, long showTime) {
+        mSpotId = spotId;
+        mShowTime = showTime;
+        mNextEvent = 0;
+        mLastPosition = 0;
+        mLastAdvanceTime = 0;
+        mStalled = false;
+    }
+
+    @Override
+    public void onProgress(int totalDurationInMsec, int positionInMsec) {
+        if (mNextEvent == 0 && positionInMsec > 0) {
+            FyberAdapterMetrics.recordSince(mSpotId, mFormat, FyberAdapterMetrics.Stage.VIDEO_STARTUP, mShowTime);
+            mLastAdvanceTime = FyberAdapterMetrics.now();
+            mLastPosition = positionInMsec;
+            deliver(VideoEvent.START);
+            return;
+        }
+
+        if (mNextEvent == 0 || mNextEvent >= VideoEvent.COMPLETE.ordinal()) {
+            return;
+        }
+
+        if (positionInMsec == mLastPosition) {
+            mStalled = FyberAdapterMetrics.now() - mLastAdvanceTime >= MIN_STALL_MILLIS;
+            return;
+        }
+
+        long now = FyberAdapterMetrics.now();
+        if (mStalled) {
+            FyberAdapterMetrics.recordSince(mSpotId, mFormat, FyberAdapterMetrics.Stage.VIDEO_STALL, mLastAdvanceTime);
+            mStalled = false;
+        }
+        mLastAdvanceTime = now;
+        mLastPosition = positionInMsec;
+
+        // Quartile thresholds are compared in integer math, position * 4 >= total * quartile. A seek may pass several of them at once
+        while (totalDurationInMsec > 0 && mNextEvent < VideoEvent.COMPLETE.ordinal() &&
+                (long) positionInMsec * 4 >= (long) totalDurationInMsec * mNextEvent) {
+            deliver(EVENTS[mNextEvent]);
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        if (mNextEvent <= VideoEvent.COMPLETE.ordinal()) {
+            // Complete is reported by the SDK, and might arrive before the last quartiles were sampled
+            mNextEvent = VideoEvent.COMPLETE.ordinal();
+            deliver(VideoEvent.COMPLETE);
+        }
+    }
+
+    @Override
+    public void onPlayerError() {
+        mNextEvent = EVENTS.length;
+        mListener.onVideoPlayerError();
+    }
+
+    private void deliver(VideoEvent event) {
+        mNextEvent = event.ordinal() + 1;
+        FyberAdapterLog.log(LOG_TAG, "video event - ", event);
+        mListener.onVideoEvent(event);
+        FyberAdapterMetrics.dispatchVideoEvent(mSpotId, mFormat, event);
+    }
+}
@@ -0,0 +1,184 @@
+/* Copyright 2020 Fyber N.V.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License
+ */
+
+package com.fyber.mediation.mopub;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.webkit.RenderProcessGoneDetail;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import androidx.annotation.NonNull;
+
+import com.fyber.inneractive.sdk.external.InneractiveAdManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a small number of idle WebViews alive after the Fyber marketplace SDK was initialized
+ * <br>The SDK creates its own WebViews for banners and MRAID interstitials, so these instances are never handed over. Keeping them alive
+ * loads the WebView provider and starts its renderer process ahead of time, which the first rendered ad of the session would otherwise pay for.
+ * The WebViews are created once the main thread is idle, and are destroyed when the system reports memory pressure, or when their
+ * renderer process is killed
+ */
+final class FyberWebViewWarmer {
+    // Mopub log tag definition
+    private final static String LOG_TAG = "FyberWebViewWarmer";
+
+    /** Upper bound of kept WebViews. A single instance is enough for keeping the renderer alive */
+    private final static int MAX_WEB_VIEWS = 2;
+
+    private final static Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static Context sContext;
+    private static int sCount;
+    private static boolean sCallbacksRegistered;
+
+    /** Accessed from the main thread only */
+    private final static List<WebView> sWebViews = new ArrayList<>(MAX_WEB_VIEWS);
+
+    /**
+     * A WebView which does not handle the death of its renderer takes the app process down with it, on API 26 and above.
+     * The warmed up WebViews are never shown, so a crashed one is simply dropped
+     */
+    private final static WebViewClient sWebViewClient = new WebViewClient() {
+        @TargetApi(Build.VERSION_CODES.O)
+        @Override
+        public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+            FyberAdapterLog.log(LOG_TAG, "warmed up WebView renderer has gone. Crashed - ", detail.didCrash());
+            sWebViews.remove(view);
+            view.destroy();
+            return true;
+        }
+    };
+
+    private FyberWebViewWarmer() {
+    }
+
+    /**
+     * Enables the warm up, which will run once the SDK is initialized, or right away if it already is
+     * @param context Android's context
+     * @param count number of WebViews to keep, up to 2. 0 disables the warm up
+     */
+    static void configure(@NonNull Context context, int count) {
+        synchronized (FyberWebViewWarmer.class) {
+            sContext = context.getApplicationContext();
+            sCount = Math.max(0, Math.min(count, MAX_WEB_VIEWS));
+        }
+
+        // The SDK may have been initialized before the network configuration has arrived, for example eagerly
+        if (InneractiveAdManager.wasInitialized()) {
+            onSdkInitialized();
+        }
+    }
+
+    /**
+     * Called when the SDK was initialized successfully. Schedules the warm up for the next time the main thread is idle
+     */
+    static void onSdkInitialized() {
+        final Context context;
+        final int count;
+        synchronized (FyberWebViewWarmer.class) {
+            context = sContext;
+            count = sCount;
+        }
+        if (context == null || count == 0) {
+            return;
+        }
+
+        // Idle handlers can only be added to the current thread's queue
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        warmUp(context, count);
+                        return false;
+                    }
+                });
+            }
+        });
+    }
+
+    private static void warmUp(Context context, int count) {
+        registerComponentCallbacks(context);
+
+        while (sWebViews.size() < count) {
+            try {
+                WebView webView = new WebView(context);
+                webView.setWebViewClient(sWebViewClient);
+                // Loading a document starts the renderer process
+                webView.loadDataWithBaseURL(null, "<html></html>", "text/html", "utf-8", null);
+                sWebViews.add(webView);
+            } catch (Exception e) {
+                // No WebView provider is installed, or it is being updated
+                FyberAdapterLog.log(LOG_TAG, "WebView warm up has failed - ", e);
+                return;
+            }
+        }
+        FyberAdapterLog.log(LOG_TAG, "warmed up WebViews - ", sWebViews.size());
+    }
+
+    private static void registerComponentCallbacks(Context context) {
+        if (sCallbacksRegistered) {
+            return;
+        }
+        sCallbacksRegistered = true;
+
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // UI_HIDDEN, BACKGROUND and MODERATE are reported whenever the app goes to the background, and do not call for a release
+                if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ||
+                        level == ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+                    release();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                release();
+            }
+        });
+    }
+
+    /**
+     * Destroys all kept WebViews. Called on the main thread, under memory pressure
+     */
+    private static void release() {
+        if (sWebViews.isEmpty()) {
+            return;
+        }
+
+        FyberAdapterLog.log(LOG_TAG, "releasing warmed up WebViews under memory pressure - ", sWebViews.size());
+        for (WebView webView : sWebViews) {
+            webView.destroy();
+        }
+        sWebViews.clear();
+    }
+}